@@ -0,0 +1,231 @@
+package com.qwerjk.better_text;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/*
+ * Gaussian blur of an alpha mask approximated by three box blurs in each
+ * direction. Every box pass keeps a running sum, so the cost per pixel is
+ * the same for any radius. Works in place on a pooled byte buffer; with an
+ * executor the rows (then the columns) are split into bands blurred in
+ * parallel. One blur at a time per instance.
+ */
+public class FastBlur {
+	private static final int PASSES = 3;
+
+	private final Executor executor;
+	private final Band[] bands;
+
+	private byte[] pixels = new byte[0];
+	private int[] row = new int[0];
+	private final int[] radii = new int[PASSES];
+
+	public FastBlur() {
+		this(null, 1);
+	}
+
+	// Split each direction into bandCount bands, all but one run on executor
+	public FastBlur(Executor executor, int bandCount) {
+		this.executor = executor;
+		bands = new Band[executor != null ? Math.max(1, bandCount) : 1];
+		for (int i = 0; i < bands.length; i++)
+			bands[i] = new Band();
+	}
+
+	// Same conversion BlurMaskFilter uses
+	public static float radiusToSigma(float radius) {
+		return radius > 0 ? 0.57735f * radius + 0.5f : 0;
+	}
+
+	// How far the blur of radius spreads a pixel
+	public static int getReach(float radius) {
+		float sigma = radiusToSigma(radius);
+
+		int reach = 0;
+		for (int i = 0; i < PASSES; i++)
+			reach += boxRadius(sigma, i);
+
+		return reach;
+	}
+
+	/**
+	 * Blur the alpha of <code>src</code> by <code>radius</code> into an
+	 * ALPHA_8 bitmap with <code>pad</code> extra pixels on every side, so it
+	 * belongs at (-pad, -pad) relative to src. <code>reuse</code> is filled
+	 * and returned when it has the right size, otherwise a new bitmap is.
+	 */
+	public synchronized Bitmap blur(Bitmap src, float radius, int pad, Bitmap reuse) {
+		int srcWidth = src.getWidth();
+		int srcHeight = src.getHeight();
+
+		// a multiple of 4 keeps the rows of an ALPHA_8 bitmap unpadded
+		int width = (srcWidth + 2 * pad + 3) & ~3;
+		int height = srcHeight + 2 * pad;
+
+		if (pixels.length < width * height)
+			pixels = new byte[width * height];
+		else
+			Arrays.fill(pixels, 0, width * height, (byte) 0);
+
+		if (row.length < srcWidth)
+			row = new int[srcWidth];
+
+		for (int v = 0; v < srcHeight; v++) {
+			src.getPixels(row, 0, srcWidth, 0, v, srcWidth, 1);
+
+			int p = (v + pad) * width + pad;
+			for (int u = 0; u < srcWidth; u++)
+				pixels[p + u] = (byte) (row[u] >>> 24);
+		}
+
+		blur(pixels, width, height, radius);
+
+		Bitmap dst = reuse;
+		if (dst == null || dst.isRecycled() || dst.getWidth() != width || dst.getHeight() != height)
+			dst = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+
+		dst.copyPixelsFromBuffer(ByteBuffer.wrap(pixels, 0, width * height));
+		return dst;
+	}
+
+	/**
+	 * Blur <code>width</code> x <code>height</code> alpha values in place.
+	 * Values beyond the edges count as 0, so leave getReach() of room around
+	 * the content for nothing to be cut off.
+	 */
+	public synchronized void blur(byte[] alpha, int width, int height, float radius) {
+		float sigma = radiusToSigma(radius);
+		for (int i = 0; i < PASSES; i++)
+			radii[i] = boxRadius(sigma, i);
+
+		if (radii[PASSES - 1] == 0)
+			return;
+
+		run(alpha, width, height, radii, true);
+		run(alpha, width, height, radii, false);
+	}
+
+	// Blur every row (or column), band by band
+	private void run(byte[] alpha, int width, int height, int[] radii, boolean rows) {
+		int lines = rows ? height : width;
+		int count = Math.min(bands.length, lines);
+		CountDownLatch done = count > 1 ? new CountDownLatch(count - 1) : null;
+
+		for (int i = 0; i < count; i++) {
+			Band band = bands[i];
+			band.set(alpha, width, height, radii, rows, lines * i / count, lines * (i + 1) / count, done);
+
+			if (i < count - 1)
+				executor.execute(band);
+			else
+				band.blurLines();
+		}
+
+		if (done == null)
+			return;
+
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Radius of box pass i, of the sizes whose passes best match a Gaussian of sigma
+	private static int boxRadius(float sigma, int i) {
+		int n = PASSES;
+		if (sigma <= 0)
+			return 0;
+
+		float wIdeal = (float) Math.sqrt(12 * sigma * sigma / n + 1);
+		int wl = (int) Math.floor(wIdeal);
+		if (wl % 2 == 0)
+			wl--;
+
+		int wu = wl + 2;
+		int m = Math.round((12 * sigma * sigma - n * wl * wl - 4 * n * wl - 3 * n) / (-4f * wl - 4));
+		return ((i < m ? wl : wu) - 1) / 2;
+	}
+
+	// One box pass of radius r over n values, zero outside
+	private static void boxLine(int[] in, int[] out, int n, int r) {
+		int size = 2 * r + 1;
+		int half = size / 2;
+
+		int sum = 0;
+		for (int i = 0; i < r && i < n; i++)
+			sum += in[i];
+
+		for (int i = 0; i < n; i++) {
+			if (i + r < n)
+				sum += in[i + r];
+
+			out[i] = (sum + half) / size;
+
+			if (i - r >= 0)
+				sum -= in[i - r];
+		}
+	}
+
+	private static final class Band implements Runnable {
+		private int[] a = new int[0];
+		private int[] b = new int[0];
+
+		private byte[] alpha;
+		private int width;
+		private int height;
+		private int[] radii;
+		private boolean rows;
+		private int from;
+		private int to;
+		private CountDownLatch done;
+
+		void set(byte[] alpha, int width, int height, int[] radii, boolean rows, int from, int to,
+				CountDownLatch done) {
+			this.alpha = alpha;
+			this.width = width;
+			this.height = height;
+			this.radii = radii;
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			try {
+				blurLines();
+			} finally {
+				done.countDown();
+			}
+		}
+
+		void blurLines() {
+			int n = rows ? width : height;
+			int step = rows ? 1 : width;
+			if (a.length < n) {
+				a = new int[n];
+				b = new int[n];
+			}
+
+			for (int line = from; line < to; line++) {
+				int start = rows ? line * width : line;
+
+				for (int i = 0, p = start; i < n; i++, p += step)
+					a[i] = alpha[p] & 0xFF;
+
+				boxLine(a, b, n, radii[0]);
+				boxLine(b, a, n, radii[1]);
+				boxLine(a, b, n, radii[2]);
+
+				for (int i = 0, p = start; i < n; i++, p += step)
+					alpha[p] = (byte) b[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package com.qwerjk.better_text;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Process wide cache of finished MagicTextView renders, so that identical
+ * labels share one bitmap. Entries are reference counted: an entry in use
+ * by a view is never evicted, the byte budget is enforced on the others in
+ * least recently used order.
+ */
+public class LabelCache {
+	public static final class Entry {
+		private final String key;
+		private final Bitmap bitmap;
+		private int refs;
+
+		Entry(String key, Bitmap bitmap) {
+			this.key = key;
+			this.bitmap = bitmap;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public Bitmap getBitmap() {
+			return bitmap;
+		}
+
+		int getSize() {
+			return bitmap.getRowBytes() * bitmap.getHeight();
+		}
+	}
+
+	private static LabelCache instance;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private int maxSize;
+	private int size;
+
+	public LabelCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	// Shared instance, 1/16 of the heap by default
+	public static synchronized LabelCache getInstance() {
+		if (instance == null)
+			instance = new LabelCache((int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE));
+
+		return instance;
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// The entry for key with one more reference, or null if not cached
+	public synchronized Entry acquire(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null)
+			entry.refs++;
+
+		return entry;
+	}
+
+	/**
+	 * Add a render and return its entry, already referenced once. If another
+	 * view cached the same key meanwhile, that entry is returned instead.
+	 */
+	public synchronized Entry put(String key, Bitmap bitmap) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(key, bitmap);
+			entries.put(key, entry);
+			size += entry.getSize();
+		}
+
+		entry.refs++;
+		trimToSize(maxSize);
+		return entry;
+	}
+
+	public synchronized void release(Entry entry) {
+		if (entry.refs > 0)
+			entry.refs--;
+
+		if (entry.refs == 0)
+			trimToSize(maxSize);
+	}
+
+	// Evict unreferenced entries, oldest first, until size <= maxSize
+	public synchronized void trimToSize(int maxSize) {
+		Iterator<Entry> itr = entries.values().iterator();
+		while (size > maxSize && itr.hasNext()) {
+			Entry entry = itr.next();
+			if (entry.refs == 0) {
+				itr.remove();
+				size -= entry.getSize();
+			}
+		}
+	}
+
+	public synchronized void evictAll() {
+		trimToSize(0);
+	}
+
+	// Call from ComponentCallbacks2.onTrimMemory()
+	public synchronized void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+			|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+			evictAll();
+		else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+			trimToSize(maxSize / 2);
+	}
+}
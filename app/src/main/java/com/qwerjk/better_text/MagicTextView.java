@@ -4,35 +4,47 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.BlurMaskFilter;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
+import android.graphics.Shader;
 import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.text.Layout;
+import android.text.Spanned;
 import android.text.TextPaint;
 import android.util.AttributeSet;
+import android.util.LruCache;
 import android.util.Pair;
 import android.view.View;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.WeakHashMap;
 
 public class MagicTextView extends TextView {
+	// Blur engines for the shadows, see setBlurMode()
+	public static final int BLUR_EXACT = 0;
+	public static final int BLUR_FAST = 1;
+
 	public static class Shadow {
-		protected final float r;
-		protected final float dx;
-		protected final float dy;
-		protected final int color;
+		// not final, so that animations can move them without allocating
+		protected float r;
+		protected float dx;
+		protected float dy;
+		protected int color;
 
 		public Shadow(float r, float dx, float dy, int color) {
 			this.r = r;
@@ -43,10 +55,21 @@ public class MagicTextView extends TextView {
 	}
 
 	static class InnerShadow extends Shadow {
-		protected final BlurMaskFilter filter;
+		private BlurMaskFilter filter;
+		private float filterRadius;
+
 		public InnerShadow(float r, float dx, float dy, int color) {
 			super(r, dx, dy, color);
-			filter = new BlurMaskFilter(r, BlurMaskFilter.Blur.NORMAL);
+		}
+
+		// rebuilt only when the radius changed since the last draw
+		BlurMaskFilter getFilter() {
+			if (filter == null || filterRadius != r) {
+				filter = new BlurMaskFilter(r, BlurMaskFilter.Blur.NORMAL);
+				filterRadius = r;
+			}
+
+			return filter;
 		}
 	}
 
@@ -60,11 +83,69 @@ public class MagicTextView extends TextView {
 
 	private Drawable foregroundDrawable;
 
+	private final Matrix foregroundMatrix = new Matrix();
+
 	private float strokeWidth;
-	private Integer strokeColor;
+	private boolean stroke;
+	private int strokeColor;
 	private Join strokeJoin;
 	private float strokeMiter;
 
+	// Effect cache: text, glyph and stroke masks plus a pyramid of blurred
+	// glyph masks, rendered once and composited with tints and offsets
+	private boolean effectCacheEnabled;
+	private boolean effectCacheDirty = true;
+	private float maxBlurRadius = 32;
+	private Bitmap cachedText;
+	private Bitmap cachedGlyphMask;
+	private Bitmap cachedStrokeMask;
+	private Bitmap[] blurLevels;
+	private int[] blurOffsets;
+	private Bitmap blurBlend; // two levels added together, see drawBlurred()
+	private Canvas blurBlendCanvas;
+	private BitmapShader foregroundShader;
+	private final Matrix foregroundBaseMatrix = new Matrix();
+	private final Matrix foregroundFrameMatrix = new Matrix();
+	private final Paint tintPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Paint foregroundPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	// Line cache: finished renders of line bands, see setLineCacheEnabled().
+	// One budget for all views; keys spell out the text and the full style.
+	private static final int LINE_CACHE_BYTES = 8 * 1024 * 1024;
+	private static LruCache<String, Bitmap> lineCache;
+	private boolean lineCacheEnabled;
+	private int styleVersion; // bumped by every effect change
+	private final Rect rcLine = new Rect();
+	private final Rect rcLineSrc = new Rect();
+
+	// Typefaces of the typeface attribute, one per asset for all views, so
+	// views with the same attribute can share renders
+	private static final HashMap<String, Typeface> assetTypefaces = new HashMap<>();
+
+	// Ids naming typefaces and drawables in the label keys, never reused
+	private static final WeakHashMap<Object, Integer> identities = new WeakHashMap<>();
+	private static int nextIdentity;
+
+	// Shared render from LabelCache, see setSharedRenderEnabled()
+	private boolean sharedRenderEnabled;
+	private LabelCache.Entry labelEntry;
+	private final float[] matrixValues = new float[9];
+
+	// what the cache was rendered for
+	private Layout cachedLayout;
+	private int cachedWidth;
+	private int cachedHeight;
+	private int cachedScrollX;
+	private int cachedScrollY;
+	private int cachedTextColor;
+	private float cachedTextSize;
+	private Typeface cachedTypeface;
+	private Drawable cachedForeground;
+
+	private int blurMode = BLUR_EXACT;
+	private FastBlur fastBlur;
+	private Bitmap fastBlurBitmap;
+
 	private int[] lockedCompoundPadding;
 	private boolean frozen = false;
 
@@ -94,10 +175,8 @@ public class MagicTextView extends TextView {
 			TypedArray a = getContext().obtainStyledAttributes(attrs, R.styleable.MagicTextView);
 
             String typefaceName = a.getString(R.styleable.MagicTextView_typeface);
-            if (typefaceName != null) {
-                Typeface tf = Typeface.createFromAsset(getContext().getAssets(), String.format("fonts/%s.ttf", typefaceName));
-                setTypeface(tf);
-            }
+            if (typefaceName != null)
+                setTypeface(getAssetTypeface(getContext(), typefaceName));
 
 			if (a.hasValue(R.styleable.MagicTextView_foreground)) {
 				Drawable foreground = a.getDrawable(R.styleable.MagicTextView_foreground);
@@ -144,6 +223,8 @@ public class MagicTextView extends TextView {
 				setStroke(strokeWidth, strokeColor, strokeJoin, strokeMiter);
 			}
 
+			blurMode = a.getInt(R.styleable.MagicTextView_blurMode, BLUR_EXACT);
+
 			a.recycle();
 		}
 
@@ -153,11 +234,24 @@ public class MagicTextView extends TextView {
         }
 	}
 
+	private static synchronized Typeface getAssetTypeface(Context context, String name) {
+		Typeface tf = assetTypefaces.get(name);
+		if (tf == null) {
+			tf = Typeface.createFromAsset(context.getAssets(), String.format("fonts/%s.ttf", name));
+			assetTypefaces.put(name, tf);
+		}
+
+		return tf;
+	}
+
 	public void setStroke(float width, int color, Join join, float miter) {
+		styleVersion++;
+		stroke = true;
 		strokeWidth = width;
 		strokeColor = color;
 		strokeJoin = join;
 		strokeMiter = miter;
+		effectCacheDirty = true;
 	}
 
 	public void setStroke(float width, int color) {
@@ -165,6 +259,7 @@ public class MagicTextView extends TextView {
 	}
 
 	public void addOuterShadow(float r, float dx, float dy, int color) {
+		styleVersion++;
 		if (r == 0)
 			r = 0.0001f;
 
@@ -172,6 +267,7 @@ public class MagicTextView extends TextView {
 	}
 
 	public void addInnerShadow(float r, float dx, float dy, int color) {
+		styleVersion++;
 		if (r == 0)
 			r = 0.0001f;
 
@@ -179,15 +275,179 @@ public class MagicTextView extends TextView {
 	}
 
 	public void clearInnerShadows() {
+		styleVersion++;
 		innerShadows.clear();
 	}
 
 	public void clearOuterShadows() {
+		styleVersion++;
 		outerShadows.clear();
 	}
 
 	public void setForegroundDrawable(Drawable d) {
+		styleVersion++;
 		foregroundDrawable = d;
+		effectCacheDirty = true;
+	}
+
+	// --------------------- animatable effects ------------
+	// None of these allocate. With the effect cache enabled a frame that only
+	// changes them composites cached masks and never re-renders the text.
+
+	public void setOuterShadowRadius(int index, float r) {
+		styleVersion++;
+		outerShadows.get(index).r = r == 0 ? 0.0001f : r;
+		invalidate();
+	}
+
+	public void setOuterShadowOffset(int index, float dx, float dy) {
+		styleVersion++;
+		Shadow shadow = outerShadows.get(index);
+		shadow.dx = dx;
+		shadow.dy = dy;
+		invalidate();
+	}
+
+	// alpha included
+	public void setOuterShadowColor(int index, int color) {
+		styleVersion++;
+		outerShadows.get(index).color = color;
+		invalidate();
+	}
+
+	public void setInnerShadowRadius(int index, float r) {
+		styleVersion++;
+		innerShadows.get(index).r = r == 0 ? 0.0001f : r;
+		invalidate();
+	}
+
+	public void setInnerShadowOffset(int index, float dx, float dy) {
+		styleVersion++;
+		Shadow shadow = innerShadows.get(index);
+		shadow.dx = dx;
+		shadow.dy = dy;
+		invalidate();
+	}
+
+	public void setInnerShadowColor(int index, int color) {
+		styleVersion++;
+		innerShadows.get(index).color = color;
+		invalidate();
+	}
+
+	public void setStrokeColor(int color) {
+		styleVersion++;
+		strokeColor = color;
+		invalidate();
+	}
+
+	// Extra transform of the foreground texture, e.g. to slide it along the text
+	public void setForegroundMatrix(Matrix matrix) {
+		styleVersion++;
+		if (matrix != null)
+			foregroundMatrix.set(matrix);
+		else
+			foregroundMatrix.reset();
+
+		invalidate();
+	}
+
+	/**
+	 * Draw from cached masks instead of re-running every text pass. Blurs
+	 * come from a pyramid of radii 1, 2, 4 ... up to the max blur radius,
+	 * blending the two levels around the requested radius, so animated radii
+	 * are close to, not exactly, what BlurMaskFilter would draw. Levels are
+	 * rendered on first use.
+	 */
+	public void setEffectCacheEnabled(boolean enabled) {
+		effectCacheEnabled = enabled;
+		if (!enabled)
+			releaseEffectCache();
+
+		invalidate();
+	}
+
+	public void setMaxBlurRadius(float r) {
+		maxBlurRadius = r;
+		effectCacheDirty = true;
+	}
+
+	/**
+	 * Draw from a render shared through LabelCache with every other view
+	 * showing the same text in the same style and size. Meant for small
+	 * repeated labels; text with spans is always drawn directly.
+	 */
+	public void setSharedRenderEnabled(boolean enabled) {
+		sharedRenderEnabled = enabled;
+		if (!enabled)
+			releaseLabel();
+
+		invalidate();
+	}
+
+	/**
+	 * Cache the rendered effects of each line of a multi-line layout, keyed
+	 * on the text of the line (and of the neighbours whose effects reach
+	 * into it) and on the style. Only visible lines are drawn, and after an
+	 * edit only lines whose key changed are rendered again. All views share
+	 * one budget, see setLineCacheSize(); lines with spans aren't cached.
+	 */
+	public void setLineCacheEnabled(boolean enabled) {
+		lineCacheEnabled = enabled;
+		invalidate();
+	}
+
+	// Budget of the line cache shared by all views, 8 MB by default
+	public static synchronized void setLineCacheSize(int maxBytes) {
+		lineCache = new LruCache<String, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+	}
+
+	private static synchronized LruCache<String, Bitmap> getLineCache() {
+		if (lineCache == null)
+			setLineCacheSize(LINE_CACHE_BYTES);
+
+		return lineCache;
+	}
+
+	/**
+	 * BLUR_EXACT draws shadows with setShadowLayer() and BlurMaskFilter, whose
+	 * cost grows with the radius. BLUR_FAST blurs the glyph mask with
+	 * FastBlur instead: constant cost per pixel, a close approximation of
+	 * the same Gaussian. Also applies to the effect cache's blur levels.
+	 */
+	public void setBlurMode(int mode) {
+		styleVersion++;
+		blurMode = mode;
+		effectCacheDirty = true;
+		invalidate();
+	}
+
+	public int getBlurMode() {
+		return blurMode;
+	}
+
+	// Share one engine between views, e.g. one built with an executor
+	public void setFastBlur(FastBlur blur) {
+		fastBlur = blur;
+	}
+
+	private FastBlur getFastBlur() {
+		if (fastBlur == null)
+			fastBlur = new FastBlur();
+
+		return fastBlur;
+	}
+
+	// For changes the cache can't see, such as a mutated foreground drawable
+	public void invalidateEffectCache() {
+		styleVersion++;
+		effectCacheDirty = true;
+		invalidate();
 	}
 
 	public Drawable getForeground() {
@@ -197,9 +457,30 @@ public class MagicTextView extends TextView {
 	private final Rect rcBounds = new Rect();
 	private final PorterDuffXfermode srcAtop = new PorterDuffXfermode(PorterDuff.Mode.SRC_ATOP);
 	private final PorterDuffXfermode dstOut = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+	private final PorterDuffXfermode add = new PorterDuffXfermode(PorterDuff.Mode.ADD);
 	@Override
 	public void onDraw(Canvas canvas) {
-		super.onDraw(canvas);
+		if (effectCacheEnabled && drawCached(canvas))
+			return;
+
+		if (sharedRenderEnabled && drawShared(canvas))
+			return;
+
+		if (lineCacheEnabled && drawLines(canvas))
+			return;
+
+		drawEffects(canvas, 0, 0, getWidth(), getHeight());
+	}
+
+	// Run every effect pass onto canvas. The w x h scratch bitmaps stand for
+	// the part of canvas that starts at (originX, originY).
+	private void drawEffects(Canvas canvas, int originX, int originY, int w, int h) {
+		boolean fast = blurMode == BLUR_FAST;
+		int pad = fast ? getFastBlurPadding() : 0;
+
+		// fast outer shadows go under the text, which is then drawn once
+		if (!fast || outerShadows.isEmpty())
+			super.onDraw(canvas);
 
 		freeze();
 
@@ -209,16 +490,36 @@ public class MagicTextView extends TextView {
 
 		setCompoundDrawables(null,  null, null, null);
 
-		for (Shadow shadow : outerShadows) {
-			setShadowLayer(shadow.r, shadow.dx, shadow.dy, shadow.color);
+		if (fast && !outerShadows.isEmpty()) {
+			generateTempCanvas(w, h);
+			drawGlyphMask(originX, originY);
+
+			for (Shadow shadow : outerShadows) {
+				fastBlurBitmap = getFastBlur().blur(tempBitmap, shadow.r, pad, fastBlurBitmap);
+				tintPaint.setColor(shadow.color);
+				canvas.drawBitmap(fastBlurBitmap, originX + shadow.dx - pad, originY + shadow.dy - pad, tintPaint);
+			}
+
+			tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+			setCompoundDrawablesWithIntrinsicBounds(restoreDrawables[0], restoreDrawables[1], restoreDrawables[2], restoreDrawables[3]);
 			super.onDraw(canvas);
+			setCompoundDrawables(null,  null, null, null);
+		} else {
+			for (Shadow shadow : outerShadows) {
+				setShadowLayer(shadow.r, shadow.dx, shadow.dy, shadow.color);
+				super.onDraw(canvas);
+			}
+
+			setShadowLayer(0,0,0,0);
 		}
 
-		setShadowLayer(0,0,0,0);
 		setTextColor(restoreColor);
 
 		if (foregroundDrawable != null && foregroundDrawable instanceof BitmapDrawable) {
-			generateTempCanvas();
+			generateTempCanvas(w, h);
+			tempCanvas.save();
+			tempCanvas.translate(-originX, -originY);
 
 			super.onDraw(tempCanvas);
 
@@ -226,12 +527,14 @@ public class MagicTextView extends TextView {
 			paint.setXfermode(srcAtop);
 			canvas.getClipBounds(rcBounds);
 			foregroundDrawable.setBounds(rcBounds);
+			tempCanvas.concat(foregroundMatrix);
 			foregroundDrawable.draw(tempCanvas);
-			canvas.drawBitmap(tempBitmap, 0, 0, null);
+			tempCanvas.restore();
+			canvas.drawBitmap(tempBitmap, originX, originY, null);
 			tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
 		}
 
-		if (strokeColor != null) {
+		if (stroke) {
 			TextPaint paint = getPaint();
 			paint.setStyle(Style.STROKE);
 			paint.setStrokeJoin(strokeJoin);
@@ -246,20 +549,39 @@ public class MagicTextView extends TextView {
 		}
 
 		if (innerShadows.size() > 0) {
-			generateTempCanvas();
+			generateTempCanvas(w, h);
 			TextPaint paint = getPaint();
 			for (InnerShadow shadow : innerShadows) {
-				setTextColor(shadow.color);
-				super.onDraw(tempCanvas);
-				setTextColor(0xFF000000);
-				paint.setXfermode(dstOut);
-				paint.setMaskFilter(shadow.filter);
+				if (fast) {
+					drawGlyphMask(originX, originY);
+					fastBlurBitmap = getFastBlur().blur(tempBitmap, shadow.r, pad, fastBlurBitmap);
+					tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+				}
+
+				tempCanvas.save();
+				tempCanvas.translate(-originX, -originY);
 
-                tempCanvas.save();
-                tempCanvas.translate(shadow.dx, shadow.dy);
+				setTextColor(shadow.color);
 				super.onDraw(tempCanvas);
 				tempCanvas.restore();
-				canvas.drawBitmap(tempBitmap, 0, 0, null);
+
+				if (fast) {
+					tintPaint.setColor(0xFF000000);
+					tintPaint.setXfermode(dstOut);
+					tempCanvas.drawBitmap(fastBlurBitmap, shadow.dx - pad, shadow.dy - pad, tintPaint);
+					tintPaint.setXfermode(null);
+				} else {
+					setTextColor(0xFF000000);
+					paint.setXfermode(dstOut);
+					paint.setMaskFilter(shadow.getFilter());
+
+					tempCanvas.save();
+					tempCanvas.translate(shadow.dx - originX, shadow.dy - originY);
+					super.onDraw(tempCanvas);
+					tempCanvas.restore();
+				}
+
+				canvas.drawBitmap(tempBitmap, originX, originY, null);
 				tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
 				
 				paint.setXfermode(null);
@@ -277,16 +599,502 @@ public class MagicTextView extends TextView {
 		unfreeze();
 	}
 
+	// Opaque glyphs into the temp bitmap, the mask FastBlur reads
+	private void drawGlyphMask(int originX, int originY) {
+		int restoreColor = getCurrentTextColor();
+
+		tempCanvas.save();
+		tempCanvas.translate(-originX, -originY);
+		setTextColor(0xFF000000);
+		super.onDraw(tempCanvas);
+		setTextColor(restoreColor);
+		tempCanvas.restore();
+	}
+
+	// One padding for every shadow, so the blur bitmap is reused between them
+	private int getFastBlurPadding() {
+		int pad = 0;
+		for (Shadow shadow : outerShadows)
+			pad = Math.max(pad, FastBlur.getReach(shadow.r));
+
+		for (Shadow shadow : innerShadows)
+			pad = Math.max(pad, FastBlur.getReach(shadow.r));
+
+		return pad;
+	}
+
+	private boolean drawShared(Canvas canvas) {
+		String key = getLabelKey();
+		if (key == null)
+			return false;
+
+		if (labelEntry == null || !labelEntry.getKey().equals(key)) {
+			releaseLabel();
+
+			LabelCache cache = LabelCache.getInstance();
+			labelEntry = cache.acquire(key);
+			if (labelEntry == null) {
+				Bitmap label = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+
+				Canvas labelCanvas = new Canvas(label);
+				labelCanvas.translate(-getScrollX(), -getScrollY());
+				drawEffects(labelCanvas, getScrollX(), getScrollY(), getWidth(), getHeight());
+
+				labelEntry = cache.put(key, label);
+			}
+		}
+
+		canvas.drawBitmap(labelEntry.getBitmap(), getScrollX(), getScrollY(), null);
+		return true;
+	}
+
+	private void releaseLabel() {
+		if (labelEntry != null) {
+			LabelCache.getInstance().release(labelEntry);
+			labelEntry = null;
+		}
+	}
+
+	// Everything the finished render depends on, or null if it can't be shared
+	private String getLabelKey() {
+		Layout layout = getLayout();
+		if (layout == null || getWidth() == 0 || getHeight() == 0)
+			return null;
+
+		// what is drawn: transformed (caps, password) text, or the hint
+		boolean hint = getText().length() == 0 && getHint() != null;
+		CharSequence text = hint ? getHint() : layout.getText();
+
+		if (text instanceof Spanned && ((Spanned) text).nextSpanTransition(0, text.length(), Object.class) < text.length())
+			return null;
+
+		StringBuilder sb = new StringBuilder(128 + text.length());
+		sb.append(hint ? 'h' : 't').append(text).append('|')
+			.append(getWidth()).append('x').append(getHeight()).append('|')
+			.append(getScrollX()).append(',').append(getScrollY()).append('|');
+
+		if (hint)
+			sb.append(getCurrentHintTextColor()).append('|');
+
+		appendStyle(sb);
+		return sb.toString();
+	}
+
+	// Everything a render depends on besides its text, size and scroll
+	private void appendStyle(StringBuilder sb) {
+		TextPaint paint = getPaint();
+		sb.append(getTextSize()).append('|')
+			.append(getResources().getDisplayMetrics().density).append('|')
+			.append(getCurrentTextColor()).append('|')
+			.append(identityOf(getTypeface())).append('|')
+			.append(getGravity()).append('|')
+			.append(blurMode).append('|')
+			.append(paint.getFlags()).append(',').append(paint.getTextScaleX()).append('|')
+			.append(getCompoundPaddingLeft()).append(',').append(getCompoundPaddingTop()).append(',')
+			.append(getCompoundPaddingRight()).append(',').append(getCompoundPaddingBottom());
+
+		sb.append('|').append(getEllipsize());
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+			sb.append(',').append(getMaxLines()).append(',')
+				.append(getLineSpacingExtra()).append(',').append(getLineSpacingMultiplier());
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+			sb.append('|').append(paint.getLetterSpacing());
+
+		for (Drawable d : getCompoundDrawables())
+			sb.append('|').append(identityOf(d));
+
+		for (Shadow shadow : outerShadows)
+			sb.append("|o").append(shadow.r).append(',').append(shadow.dx).append(',').append(shadow.dy).append(',').append(shadow.color);
+
+		for (Shadow shadow : innerShadows)
+			sb.append("|i").append(shadow.r).append(',').append(shadow.dx).append(',').append(shadow.dy).append(',').append(shadow.color);
+
+		if (stroke)
+			sb.append("|s").append(strokeWidth).append(',').append(strokeColor).append(',').append(strokeJoin).append(',').append(strokeMiter);
+
+		if (foregroundDrawable != null) {
+			sb.append("|f").append(identityOf(foregroundDrawable));
+
+			foregroundMatrix.getValues(matrixValues);
+			for (float v : matrixValues)
+				sb.append(',').append(v);
+		}
+	}
+
+	// Drawables inflated from the same resource share their constant state
+	private static int identityOf(Drawable d) {
+		if (d == null)
+			return 0;
+
+		Drawable.ConstantState state = d.getConstantState();
+		return identityOf(state != null ? state : d);
+	}
+
+	// Unlike identityHashCode, unique among the objects alive
+	private static synchronized int identityOf(Object o) {
+		if (o == null)
+			return 0;
+
+		Integer id = identities.get(o);
+		if (id == null) {
+			id = ++nextIdentity;
+			identities.put(o, id);
+		}
+
+		return id;
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		releaseLabel();
+	}
+
+	private boolean drawLines(Canvas canvas) {
+		Layout layout = getLayout();
+		if (layout == null || layout.getLineCount() < 2 || getWidth() == 0 || getHeight() == 0)
+			return false;
+
+		int lastLine = layout.getLineCount() - 1;
+		int pad = getEffectPadding();
+		int x = getScrollX();
+		int w = getWidth();
+
+		getLineBounds(0, rcLine);
+		int voffset = rcLine.top - layout.getLineTop(0);
+
+		canvas.getClipBounds(rcBounds);
+		int first = layout.getLineForVertical(rcBounds.top - voffset);
+		int last = layout.getLineForVertical(rcBounds.bottom - voffset);
+
+		// TextView.onDraw clips the text to the scrolled window less the
+		// padding, so bands near its edges are rendered with parts cut off
+		int scrollY = getScrollY();
+		int vspace = getHeight() - getCompoundPaddingTop() - getCompoundPaddingBottom();
+		int clipTop = scrollY == 0 ? 0 : scrollY + getExtendedPaddingTop();
+		int clipBottom = scrollY + getHeight()
+			- (scrollY == layout.getHeight() - vspace ? 0 : getExtendedPaddingBottom());
+
+		for (int line = first; line <= last; line++) {
+			int top = layout.getLineTop(line) + voffset;
+			int bottom = layout.getLineBottom(line) + voffset;
+
+			// the outer bands also own the padding above and below the text
+			if (line == 0)
+				top = Math.min(top, getScrollY());
+			if (line == lastLine)
+				bottom = Math.max(bottom, getScrollY() + getHeight());
+
+			String key = getLineKey(layout, top, bottom, pad, voffset, clipTop, clipBottom);
+			Bitmap band = key != null ? getLineCache().get(key) : null;
+			if (band == null) {
+				band = Bitmap.createBitmap(w, bottom - top + 2 * pad, Bitmap.Config.ARGB_8888);
+
+				Canvas bandCanvas = new Canvas(band);
+				bandCanvas.translate(-x, -(top - pad));
+				bandCanvas.clipRect(x, top - pad, x + w, bottom + pad);
+				drawEffects(bandCanvas, x, top - pad, band.getWidth(), band.getHeight());
+
+				if (key != null)
+					getLineCache().put(key, band);
+			}
+
+			rcLineSrc.set(0, pad, w, pad + bottom - top);
+			rcLine.set(x, top, x + w, bottom);
+			canvas.drawBitmap(band, rcLineSrc, rcLine, null);
+		}
+
+		return true;
+	}
+
+	// How far effects can reach outside the glyphs
+	private int getEffectPadding() {
+		float pad = 0;
+		for (Shadow shadow : outerShadows)
+			pad = Math.max(pad, Math.max(2 * shadow.r, FastBlur.getReach(shadow.r))
+				+ Math.max(Math.abs(shadow.dx), Math.abs(shadow.dy)));
+
+		if (stroke)
+			pad = Math.max(pad, strokeJoin == Join.MITER ? strokeWidth * strokeMiter / 2 : strokeWidth / 2);
+
+		return (int) Math.ceil(pad) + 1;
+	}
+
+	// Everything a band's pixels depend on, or null if it has spans. How much
+	// of the band the text clip cuts off counts too: a band rendered while
+	// partly outside the clip only matches one cut the same way.
+	private String getLineKey(Layout layout, int top, int bottom, int pad, int voffset,
+			int clipTop, int clipBottom) {
+		int from = layout.getLineForVertical(top - pad - voffset);
+		int to = layout.getLineForVertical(bottom + pad - voffset);
+		int start = layout.getLineStart(from);
+		int end = layout.getLineEnd(to);
+
+		CharSequence text = layout.getText();
+		if (text instanceof Spanned && ((Spanned) text).nextSpanTransition(start, end, Object.class) < end)
+			return null;
+
+		StringBuilder sb = new StringBuilder(128 + end - start);
+		sb.append(text, start, end).append('|')
+			.append(layout.getLineTop(from) + voffset - top).append(',').append(bottom - top).append('|')
+			.append(getWidth()).append(',').append(getScrollX()).append('|')
+			.append(Math.max(0, clipTop - (top - pad))).append(',')
+			.append(Math.max(0, bottom + pad - clipBottom)).append('|')
+			.append(styleVersion).append('|');
+
+		for (int line = from; line <= to; line++)
+			sb.append(layout.getEllipsisStart(line)).append(',').append(layout.getEllipsisCount(line)).append('|');
+
+		appendStyle(sb);
+		return sb.toString();
+	}
+
+	private boolean drawCached(Canvas canvas) {
+		if (getWidth() == 0 || getHeight() == 0)
+			return false;
+
+		if (isEffectCacheStale())
+			buildEffectCache();
+
+		// the masks hold the visible window, which starts at the scroll
+		int x = getScrollX();
+		int y = getScrollY();
+
+		for (Shadow shadow : outerShadows)
+			canvas.drawBitmap(drawBlurred(shadow.r, shadow.dx, shadow.dy, shadow.color), x, y, null);
+
+		canvas.drawBitmap(cachedText, x, y, null);
+
+		if (foregroundShader != null) {
+			foregroundFrameMatrix.set(foregroundBaseMatrix);
+			foregroundFrameMatrix.postConcat(foregroundMatrix);
+			foregroundShader.setLocalMatrix(foregroundFrameMatrix);
+			canvas.drawBitmap(cachedGlyphMask, x, y, foregroundPaint);
+		}
+
+		if (stroke) {
+			tintPaint.setColor(strokeColor);
+			canvas.drawBitmap(cachedStrokeMask, x, y, tintPaint);
+		}
+
+		if (innerShadows.size() > 0) {
+			generateTempCanvas();
+			for (InnerShadow shadow : innerShadows) {
+				tintPaint.setColor(shadow.color);
+				tempCanvas.drawBitmap(cachedGlyphMask, 0, 0, tintPaint);
+
+				Bitmap blurred = drawBlurred(shadow.r, shadow.dx, shadow.dy, 0xFF000000);
+				tintPaint.setColor(0xFF000000);
+				tintPaint.setXfermode(dstOut);
+				tempCanvas.drawBitmap(blurred, 0, 0, tintPaint);
+				tintPaint.setXfermode(null);
+
+				canvas.drawBitmap(tempBitmap, x, y, null);
+				tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+			}
+		}
+
+		return true;
+	}
+
+	private static float blurLevelRadius(int level) {
+		return level == 0 ? 0 : 1 << (level - 1);
+	}
+
+	// The glyph mask blurred by r, offset and tinted with color. The two
+	// nearest cached levels are added with weights 1 - t and t, so a solid
+	// core keeps its opacity while r moves between levels.
+	private Bitmap drawBlurred(float r, float dx, float dy, int color) {
+		int top = blurLevels.length - 1;
+		r = Math.min(r, blurLevelRadius(top));
+
+		int lo = 0;
+		while (lo < top && blurLevelRadius(lo + 1) <= r)
+			lo++;
+
+		int hi = Math.min(lo + 1, top);
+		float t = hi == lo ? 0 : (r - blurLevelRadius(lo)) / (blurLevelRadius(hi) - blurLevelRadius(lo));
+
+		if (blurBlend == null) {
+			blurBlend = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+			blurBlendCanvas = new Canvas(blurBlend);
+		} else {
+			blurBlendCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+		}
+
+		int alpha = Color.alpha(color);
+		int hiAlpha = Math.round(alpha * t);
+
+		tintPaint.setColor(color);
+		tintPaint.setXfermode(add);
+		if (hiAlpha < alpha) {
+			tintPaint.setAlpha(alpha - hiAlpha);
+			blurBlendCanvas.drawBitmap(getBlurLevel(lo), dx + blurOffsets[lo], dy + blurOffsets[lo], tintPaint);
+		}
+
+		if (hiAlpha > 0) {
+			tintPaint.setAlpha(hiAlpha);
+			blurBlendCanvas.drawBitmap(getBlurLevel(hi), dx + blurOffsets[hi], dy + blurOffsets[hi], tintPaint);
+		}
+
+		tintPaint.setXfermode(null);
+		return blurBlend;
+	}
+
+	private Bitmap getBlurLevel(int level) {
+		if (blurLevels[level] == null && blurMode == BLUR_FAST) {
+			int pad = FastBlur.getReach(blurLevelRadius(level));
+			blurLevels[level] = getFastBlur().blur(cachedGlyphMask, blurLevelRadius(level), pad, null);
+			blurOffsets[level] = -pad;
+		} else if (blurLevels[level] == null) {
+			Paint blurPaint = new Paint();
+			blurPaint.setMaskFilter(new BlurMaskFilter(blurLevelRadius(level), BlurMaskFilter.Blur.NORMAL));
+
+			int[] offset = new int[2];
+			blurLevels[level] = cachedGlyphMask.extractAlpha(blurPaint, offset);
+			blurOffsets[level] = offset[0];
+		}
+
+		return blurLevels[level];
+	}
+
+	// TextView reuses a BoringLayout for new single-line text, so the layout
+	// check in isEffectCacheStale() alone misses text changes
+	@Override
+	protected void onTextChanged(CharSequence text, int start, int lengthBefore, int lengthAfter) {
+		super.onTextChanged(text, start, lengthBefore, lengthAfter);
+		effectCacheDirty = true;
+	}
+
+	private boolean isEffectCacheStale() {
+		return effectCacheDirty
+			|| cachedLayout != getLayout()
+			|| cachedWidth != getWidth()
+			|| cachedHeight != getHeight()
+			|| cachedScrollX != getScrollX()
+			|| cachedScrollY != getScrollY()
+			|| cachedTextColor != getCurrentTextColor()
+			|| cachedTextSize != getTextSize()
+			|| cachedTypeface != getTypeface()
+			|| cachedForeground != foregroundDrawable;
+	}
+
+	private void buildEffectCache() {
+		releaseEffectCache();
+
+		freeze();
+
+		Drawable[] restoreDrawables = getCompoundDrawables();
+
+		int x = getScrollX();
+		int y = getScrollY();
+
+		cachedText = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+		Canvas textCanvas = new Canvas(cachedText);
+		textCanvas.translate(-x, -y);
+		super.onDraw(textCanvas);
+
+		setCompoundDrawables(null, null, null, null);
+
+		generateTempCanvas();
+		tempCanvas.save();
+		tempCanvas.translate(-x, -y);
+		super.onDraw(tempCanvas);
+		cachedGlyphMask = tempBitmap.extractAlpha();
+		tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+		if (stroke) {
+			TextPaint paint = getPaint();
+			paint.setStyle(Style.STROKE);
+			paint.setStrokeJoin(strokeJoin);
+			paint.setStrokeMiter(strokeMiter);
+			paint.setStrokeWidth(strokeWidth);
+
+			super.onDraw(tempCanvas);
+			cachedStrokeMask = tempBitmap.extractAlpha();
+			tempCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+			paint.setStyle(Style.FILL);
+		}
+
+		tempCanvas.restore();
+
+		if (foregroundDrawable instanceof BitmapDrawable) {
+			BitmapDrawable bd = (BitmapDrawable) foregroundDrawable;
+			Shader.TileMode tileX = bd.getTileModeX();
+			Shader.TileMode tileY = bd.getTileModeY();
+
+			// untiled drawables are stretched over the view, as in onDraw
+			foregroundBaseMatrix.reset();
+			if (tileX == null && tileY == null) {
+				Bitmap b = bd.getBitmap();
+				foregroundBaseMatrix.setScale(getWidth() / (float) b.getWidth(), getHeight() / (float) b.getHeight());
+				foregroundBaseMatrix.postTranslate(x, y);
+			}
+
+			foregroundShader = new BitmapShader(bd.getBitmap(),
+				tileX != null ? tileX : Shader.TileMode.CLAMP,
+				tileY != null ? tileY : Shader.TileMode.CLAMP);
+			foregroundPaint.setShader(foregroundShader);
+		}
+
+		int levels = 2;
+		while (blurLevelRadius(levels - 1) < maxBlurRadius)
+			levels++;
+
+		blurLevels = new Bitmap[levels];
+		blurOffsets = new int[levels];
+		blurLevels[0] = cachedGlyphMask;
+
+		setCompoundDrawablesWithIntrinsicBounds(restoreDrawables[0], restoreDrawables[1], restoreDrawables[2], restoreDrawables[3]);
+
+		unfreeze();
+
+		cachedLayout = getLayout();
+		cachedWidth = getWidth();
+		cachedHeight = getHeight();
+		cachedScrollX = x;
+		cachedScrollY = y;
+		cachedTextColor = getCurrentTextColor();
+		cachedTextSize = getTextSize();
+		cachedTypeface = getTypeface();
+		cachedForeground = foregroundDrawable;
+		effectCacheDirty = false;
+	}
+
+	private void releaseEffectCache() {
+		cachedText = null;
+		cachedGlyphMask = null;
+		cachedStrokeMask = null;
+		blurLevels = null;
+		blurOffsets = null;
+		blurBlend = null;
+		blurBlendCanvas = null;
+		foregroundShader = null;
+		foregroundPaint.setShader(null);
+		cachedLayout = null;
+		effectCacheDirty = true;
+	}
+
 	private void generateTempCanvas() {
+		generateTempCanvas(getWidth(), getHeight());
+	}
+
+	private void generateTempCanvas(int width, int height) {
+		// the common case, and the only one that must not allocate
+		if (tempBitmap != null && tempBitmap.getWidth() == width && tempBitmap.getHeight() == height)
+			return;
+
 	    @SuppressLint("DefaultLocale")
-		String key = String.format("%dx%d", getWidth(), getHeight());
+		String key = String.format("%dx%d", width, height);
 	    Pair<Canvas, Bitmap> stored = canvasStore.get(key);
 	    if (stored != null) {
 	        tempCanvas = stored.first;
 	        tempBitmap = stored.second;
 	    } else {
             tempCanvas = new Canvas();
-            tempBitmap = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            tempBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
             tempCanvas.setBitmap(tempBitmap);
             canvasStore.put(key, new Pair<>(tempCanvas, tempBitmap));
 	    }
@@ -28,4 +28,10 @@ public class MagicTextViewActivity extends Activity {
 
         imageImv.setImageBitmap(mBorderText.process(textImg));
     }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        LabelCache.getInstance().trimMemory(level);
+    }
 }
@@ -8,18 +8,50 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.os.Build;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-
+import java.util.Map;
+
+/*
+ * Traces a source once into an immutable BorderGeometry and renders borders
+ * from it. The geometry is published through a volatile field and built
+ * under a lock, so concurrent first calls trace only once, and rendering
+ * with a BorderParams never takes a lock. The setters are configuration:
+ * call them before sharing the Border between threads.
+ */
 public class Border {
     private float borderSize; // borderSize From 0-50
     private int color;
 
-    private boolean isGetPath;
-    private Path[] outerPath;
-    private Path[] innerPath;
-    private List<Contour> outerContours;
+    // Largest outline error, in source pixels, we accept in exchange for
+    // tracing on a smaller mask. 0 (or anything below 1) traces at full size.
+    private float traceTolerance;
+
+    private boolean runLengthTracing;
+
+    // noise filter, in source pixels
+    private float minContourArea;
+    private int minContourLength;
+
+    private boolean incremental;
+
+    private volatile BorderGeometry geometry;
+    private volatile float tracedBorderSize; // what a tolerant trace was scaled for, 0 if not traced here
+
+    // Guarded by traceLock. The tracer state is kept between calls in
+    // incremental mode so edits can be re-traced locally.
+    private final Object traceLock = new Object();
+    private ContourFile contourFile;
+    private ContourTracer tracer;
+    private Bitmap maskBitmap;
+    private Map<Contour, Path> pathCache;
+    private List<Contour> outerContours; // of the current geometry
     private List<Contour> innerContours;
 
     public Border() {
@@ -31,139 +63,454 @@ public class Border {
         return borderSize;
     }
 
+    // The trace scale follows the border width, so a tolerant trace is redone
     public void setBorderSize(float borderSize) {
+        if (borderSize != this.borderSize && traceTolerance > 1f)
+            invalidate();
+
         this.borderSize = borderSize;
     }
 
     public boolean isGetPath() {
-        return isGetPath;
+        return geometry != null;
     }
 
-    private void setGetPath(boolean isGetPath) {
-        this.isGetPath = isGetPath;
+    public BorderGeometry getGeometry() {
+        return geometry;
     }
 
     public Path[] getOuterPath() {
-        return outerPath;
+        BorderGeometry g = geometry;
+        return g != null ? g.getOuterPaths() : null;
     }
 
-    private void setOuterPath(Path[] outerPath) {
-        this.outerPath = outerPath;
+    public Path[] getInnerPath() {
+        BorderGeometry g = geometry;
+        return g != null ? g.getInnerPaths() : null;
     }
 
-    public Path[] getInnerPath() {
-        return innerPath;
+    /**
+     * The traced contours, in the coordinates of the mask they were traced
+     * on: multiply by 1 / getTraceScale() to get source coordinates, which
+     * is what the paths already use. Returns copies without a hierarchy,
+     * since incremental updates keep changing the traced ones.
+     */
+    public List<Contour> getOuterContours() {
+        synchronized (traceLock) {
+            return geometry != null ? Contour.detachedCopies(outerContours) : null;
+        }
     }
 
-    private void setInnerPath(Path[] innerPath) {
-        this.innerPath = innerPath;
+    // Same coordinates as getOuterContours()
+    public List<Contour> getInnerContours() {
+        synchronized (traceLock) {
+            return geometry != null ? Contour.detachedCopies(innerContours) : null;
+        }
     }
 
-    public List<Contour> getOuterContours() {
-        return outerContours;
+    public int getColor() {
+        return color;
     }
 
-    private void setOuterContours(List<Contour> outerContours) {
-        this.outerContours = outerContours;
+    public void setColor(int color) {
+        this.color = color;
     }
 
-    public List<Contour> getInnerContours() {
-        return innerContours;
+    public float getTraceTolerance() {
+        return traceTolerance;
     }
 
-    private void setInnerContours(List<Contour> innerContours) {
-        this.innerContours = innerContours;
+    /**
+     * Allow contours to be traced on a downsampled alpha mask. The mask is
+     * shrunk so that one mask pixel covers at most <code>tolerance</code>
+     * source pixels, and never more than a quarter of the border width, which
+     * the round stroke hides anyway. That is the thinnest width rendered so
+     * far, BorderParams included: a thinner one retraces. Contours from
+     * setContours() or a ContourFile keep their scale. Changing it drops any
+     * traced paths.
+     */
+    public void setTraceTolerance(float tolerance) {
+        if (tolerance != traceTolerance)
+            invalidate();
+
+        this.traceTolerance = tolerance;
     }
 
-    public int getColor() {
-        return color;
+    /**
+     * Scale of the mask the cached paths were traced on, relative to the
+     * source. The paths themselves are always kept in source coordinates.
+     */
+    public float getTraceScale() {
+        BorderGeometry g = geometry;
+        return g != null ? g.getTraceScale() : 1f;
     }
 
-    public void setColor(int color) {
-        this.color = color;
+    /**
+     * Use contours traced elsewhere instead of running ContourTracer. The
+     * points are in the coordinates of a mask traced at <code>traceScale</code>
+     * of the source.
+     */
+    public void setContours(List<Contour> outerContours, List<Contour> innerContours, float traceScale) {
+        Path[] outer = Contour.makePolygons(outerContours);
+        Path[] inner = Contour.makePolygons(innerContours);
+
+        if (traceScale != 1f) {
+            Matrix toSource = new Matrix();
+            toSource.setScale(1f / traceScale, 1f / traceScale);
+
+            for (Path p : outer)
+                p.transform(toSource);
+
+            for (Path p : inner)
+                p.transform(toSource);
+        }
+
+        synchronized (traceLock) {
+            contourFile = null;
+            releaseTracer();
+            this.outerContours = outerContours;
+            this.innerContours = innerContours;
+            tracedBorderSize = 0;
+            geometry = new BorderGeometry(0, 0, traceScale, outer, inner);
+        }
     }
 
-    public Bitmap process(Bitmap src) {
+    /**
+     * Use the contours of a pre-traced asset. Nothing is decoded until the
+     * first process() call, and the contour lists are left empty.
+     */
+    public void setContourFile(ContourFile file) {
+        synchronized (traceLock) {
+            contourFile = file;
+            releaseTracer();
+            geometry = null;
+        }
+    }
+
+    public boolean isRunLengthTracing() {
+        return runLengthTracing;
+    }
+
+    /**
+     * Trace with RunLengthContourTracer, whose memory follows the number of
+     * runs in the mask instead of its area. Incremental mode needs the label
+     * grid of ContourTracer and takes precedence.
+     */
+    public void setRunLengthTracing(boolean runLengthTracing) {
+        if (runLengthTracing != this.runLengthTracing)
+            invalidate();
+
+        this.runLengthTracing = runLengthTracing;
+    }
+
+    public float getMinContourArea() {
+        return minContourArea;
+    }
+
+    public int getMinContourLength() {
+        return minContourLength;
+    }
+
+    /**
+     * Drop regions and holes that cover less than <code>minArea</code> or
+     * whose contour is shorter than <code>minLength</code> (both in source
+     * pixels) while tracing, so specks never turn into paths.
+     */
+    public void setContourFilter(float minArea, int minLength) {
+        if (minArea != minContourArea || minLength != minContourLength)
+            invalidate();
+
+        minContourArea = minArea;
+        minContourLength = minLength;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Keep the traced mask and labels after process() so that update() can
+     * re-trace only the part of the source that was edited. Costs one mask
+     * and one label grid of the traced size for as long as it is on.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+
+        if (!incremental) {
+            synchronized (traceLock) {
+                releaseTracer();
+            }
+        }
+    }
+
+    // Drop the traced geometry; the next render traces again
+    private void invalidate() {
+        synchronized (traceLock) {
+            geometry = null;
+        }
+    }
+
+    private void releaseTracer() {
+        tracer = null;
+        pathCache = null;
+
+        if (maskBitmap != null && !maskBitmap.isRecycled())
+            maskBitmap.recycle();
+
+        maskBitmap = null;
+    }
+
+    /**
+     * The geometry of <code>src</code>, traced on first use. Threads asking
+     * at the same time wait for a single trace; afterwards this is a plain
+     * volatile read.
+     */
+    public BorderGeometry getGeometry(Bitmap src) {
+        return getGeometry(src, getBorderSize());
+    }
+
+    // The trace scale depends on the border width, so a render with a thinner
+    // border than the geometry was traced for traces again, finer
+    private BorderGeometry getGeometry(Bitmap src, float borderSize) {
+        BorderGeometry g = geometry;
+        if (g == null || borderSize < tracedBorderSize) {
+            synchronized (traceLock) {
+                g = geometry;
+                if (g == null || borderSize < tracedBorderSize) {
+                    if (contourFile != null) {
+                        outerContours = null;
+                        innerContours = null;
+                        tracedBorderSize = 0;
+                        g = new BorderGeometry(contourFile.getSourceWidth(), contourFile.getSourceHeight(),
+                            contourFile.getTraceScale(), contourFile.getOuterPaths(), contourFile.getInnerPaths());
+                    } else {
+                        Log.e("is Run ", "is Run ");
+                        borderSize = Math.min(borderSize, getBorderSize());
+                        g = trace(src, borderSize);
+                        tracedBorderSize = traceTolerance > 1f ? borderSize : 0;
+                    }
+
+                    geometry = g;
+                }
+            }
+        }
+
+        return g;
+    }
+
+    /**
+     * Process <code>src</code> again after the pixels inside <code>dirty</code>
+     * (source coordinates) were changed. In incremental mode only the regions
+     * touching the dirty rectangle are re-traced, otherwise everything is.
+     * Renders already running keep the geometry they started with.
+     */
+    public Bitmap update(Bitmap src, Rect dirty) {
+        synchronized (traceLock) {
+            BorderGeometry g = geometry;
+            if (tracer == null || g == null
+                || g.getWidth() != src.getWidth() || g.getHeight() != src.getHeight()) {
+                geometry = null;
+            } else {
+                geometry = retrace(src, dirty);
+            }
+        }
+
+        return process(src);
+    }
+
+    private BorderGeometry retrace(Bitmap src, Rect dirty) {
+        BorderGeometry g = geometry;
+
         int width = src.getWidth();
         int height = src.getHeight();
-        Log.e("src size: ", " " + src.getWidth() + " va " + src.getHeight());
+        int traceWidth = maskBitmap.getWidth();
+        int traceHeight = maskBitmap.getHeight();
+        float sx = traceWidth / (width * 1f);
+        float sy = traceHeight / (height * 1f);
+
+        Rect maskDirty = new Rect((int) Math.floor(dirty.left * sx), (int) Math.floor(dirty.top * sy),
+            (int) Math.ceil(dirty.right * sx), (int) Math.ceil(dirty.bottom * sy));
+        if (!maskDirty.intersect(0, 0, traceWidth, traceHeight))
+            return g;
+
+        // source pixels that end up in the dirty part of the mask
+        Rect srcDirty = new Rect((int) Math.floor(maskDirty.left / sx), (int) Math.floor(maskDirty.top / sy),
+            (int) Math.ceil(maskDirty.right / sx), (int) Math.ceil(maskDirty.bottom / sy));
+        srcDirty.inset(-1, -1);
+        srcDirty.intersect(0, 0, width, height);
+
+        Canvas canvas = new Canvas(maskBitmap);
+        canvas.clipRect(maskDirty);
+        canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+
+        Bitmap region = Bitmap.createBitmap(src, srcDirty.left, srcDirty.top, srcDirty.width(), srcDirty.height());
+        Matrix maskMatrix = new Matrix();
+        maskMatrix.setScale(sx, sy);
+        maskMatrix.preTranslate(srcDirty.left, srcDirty.top);
+        drawAlpha(region, canvas, maskMatrix);
+
+        if (region != src && !region.isRecycled())
+            region.recycle();
+
+        tracer.retrace(maskDirty);
+        return buildGeometry(width, height, traceWidth, traceHeight,
+            tracer.getOuterContours(), tracer.getInnerContours());
+    }
 
-        float borderSize = getBorderSize();
+    public static float computeTraceScale(float borderSize, float tolerance) {
+        if (tolerance <= 1f || borderSize <= 0f)
+            return 1f;
 
-        // Border size = 0 -> 3% width or height for small bitmap
+        float step = Math.min(tolerance, Math.max(1f, borderSize / 4f));
+        return 1f / step;
+    }
+
+    // Border size = 0 -> 3% width or height for small bitmap
+    static float getActualBorderSize(float borderSize, int width, int height) {
         int sizeActual = Math.min(width, height);
         if (sizeActual < 150f)
             borderSize = (borderSize / 50f) * (sizeActual * 0.3f);
 
-        Paint paint = new Paint();
-        paint.setStrokeWidth(borderSize);
-        paint.setColor(getColor());
-        paint.setAntiAlias(true);
-        paint.setDither(true);
-        paint.setFilterBitmap(true);
-        paint.setStyle(Style.STROKE);
+        return borderSize;
+    }
+
+    private BorderGeometry trace(Bitmap src, float borderSize) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+
+        float scale = computeTraceScale(getActualBorderSize(borderSize, width, height), getTraceTolerance());
+        int traceWidth = Math.max(1, Math.round(width * scale));
+        int traceHeight = Math.max(1, Math.round(height * scale));
+
+        Bitmap resultBitmap = Bitmap.createBitmap(traceWidth, traceHeight, Config.ARGB_8888);
+        Canvas canvas = new Canvas(resultBitmap);
+
+        Matrix maskMatrix = new Matrix();
+        maskMatrix.setScale(traceWidth / (width * 1f), traceHeight / (height * 1f));
+        drawAlpha(src, canvas, maskMatrix);
+
+        // filter limits in mask pixels
+        float sx = traceWidth / (width * 1f);
+        float minArea = getMinContourArea() * sx * sx;
+        int minLength = (int) Math.ceil(getMinContourLength() * sx);
 
-        /*
-         * You should store this Path for next time draw
-         */
-        if (!isGetPath()) {
-            Log.e("is Run ", "is Run ");
-
-            // init paint to get extract alpha bitmap
-            Paint alphaPaint = new Paint();
-            alphaPaint.setDither(true);
-            alphaPaint.setAntiAlias(true);
-            alphaPaint.setColor(Color.BLACK);
-
-            int[] offset = new int[2];
-            Bitmap bmAlpha = src.extractAlpha(alphaPaint, offset);
-
-            Bitmap resultBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-            Canvas canvas = new Canvas(resultBitmap);
-
-            Paint mainPaint = new Paint();
-            mainPaint.setDither(true);
-            mainPaint.setAntiAlias(true);
-            mainPaint.setFilterBitmap(true);
-            mainPaint.setStrokeJoin(Paint.Join.ROUND);
-            mainPaint.setStrokeCap(Paint.Cap.SQUARE);
-            canvas.drawBitmap(bmAlpha, 0, 0, mainPaint);
-
-            if (!bmAlpha.isRecycled())
-                bmAlpha.recycle();
-
-            // Find contour
-            ContourTracer tracer = new ContourTracer(resultBitmap);
-            setOuterContours(tracer.getOuterContours());
-            setInnerContours(tracer.getInnerContours());
-
-            setOuterPath(Contour.makePolygons(getOuterContours()));
-            setInnerPath(Contour.makePolygons(getInnerContours()));
-            if (!resultBitmap.isRecycled())
-                resultBitmap.recycle();
-
-            setGetPath(true);
+        // Find contour
+        ContourFinder finder = runLengthTracing && !incremental
+            ? new RunLengthContourTracer(RunLengthMask.fromBitmap(resultBitmap), minArea, minLength)
+            : new ContourTracer(resultBitmap, minArea, minLength);
+
+        releaseTracer();
+        BorderGeometry g = buildGeometry(width, height, traceWidth, traceHeight,
+            finder.getOuterContours(), finder.getInnerContours());
+
+        if (incremental) {
+            tracer = (ContourTracer) finder;
+            maskBitmap = resultBitmap;
+        } else if (!resultBitmap.isRecycled()) {
+            resultBitmap.recycle();
         }
 
-        Bitmap finalBitmap = Bitmap.createBitmap(src.getWidth(), src.getHeight(), src.getConfig());
-        Matrix matrix = new Matrix();
-        matrix.setScale((width - borderSize) / (width * 1f),
-            (height - borderSize) / (height * 1f), width / 2f, height / 2f);
+        return g;
+    }
 
-        Canvas canvasBorder = new Canvas(finalBitmap);
+    private static void drawAlpha(Bitmap src, Canvas canvas, Matrix matrix) {
+        // init paint to get extract alpha bitmap
+        Paint alphaPaint = new Paint();
+        alphaPaint.setDither(true);
+        alphaPaint.setAntiAlias(true);
+        alphaPaint.setColor(Color.BLACK);
+
+        int[] offset = new int[2];
+        Bitmap bmAlpha = src.extractAlpha(alphaPaint, offset);
+
+        Paint mainPaint = new Paint();
+        mainPaint.setDither(true);
+        mainPaint.setAntiAlias(true);
+        mainPaint.setFilterBitmap(true);
+        mainPaint.setStrokeJoin(Paint.Join.ROUND);
+        mainPaint.setStrokeCap(Paint.Cap.SQUARE);
+        canvas.drawBitmap(bmAlpha, matrix, mainPaint);
+
+        if (!bmAlpha.isRecycled())
+            bmAlpha.recycle();
+    }
 
-        paint.setStrokeJoin(Paint.Join.ROUND);
-        paint.setStrokeCap(Paint.Cap.ROUND);
+    // Polygons of the contours in source coordinates. In incremental mode
+    // the paths of contours that survived an update are reused.
+    private BorderGeometry buildGeometry(int width, int height, int traceWidth, int traceHeight,
+                                         List<Contour> outerContours, List<Contour> innerContours) {
+        Matrix toSource = null;
+        if (traceWidth != width || traceHeight != height) {
+            toSource = new Matrix();
+            toSource.setScale(width / (traceWidth * 1f), height / (traceHeight * 1f));
+        }
+
+        Map<Contour, Path> cache = new IdentityHashMap<>();
+        Path[] outer = makePaths(outerContours, toSource, cache);
+        Path[] inner = makePaths(innerContours, toSource, cache);
+        pathCache = incremental ? cache : null;
+
+        this.outerContours = outerContours;
+        this.innerContours = innerContours;
+        return new BorderGeometry(width, height, traceWidth / (width * 1f), outer, inner);
+    }
+
+    private Path[] makePaths(List<Contour> contours, Matrix toSource, Map<Contour, Path> cache) {
+        Path[] pa = new Path[contours.size()];
+
+        int i = 0;
+        for (Contour c : contours) {
+            Path p = pathCache != null ? pathCache.get(c) : null;
+            if (p == null) {
+                p = c.makePolygon();
+                if (toSource != null)
+                    p.transform(toSource);
+            }
+
+            cache.put(c, p);
+            pa[i++] = p;
+        }
+
+        return pa;
+    }
+
+    public Bitmap process(Bitmap src) {
+        return process(src, src.getWidth(), src.getHeight());
+    }
+
+    public Bitmap process(Bitmap src, int width, int height) {
+        return process(src, width, height, new BorderParams(getBorderSize(), getColor()));
+    }
+
+    /**
+     * Render the bordered source at <code>width</code> x <code>height</code>.
+     * The contours are traced once per source and reused for every output
+     * size, only the final rasterization depends on the target. Safe to call
+     * from several threads at once.
+     */
+    public Bitmap process(Bitmap src, int width, int height, BorderParams params) {
+        Log.e("src size: ", " " + src.getWidth() + " va " + src.getHeight());
+
+        float borderSize = getActualBorderSize(params.getBorderSize(), width, height);
+        Paint paint = makeBorderPaint(borderSize, params.getColor());
 
-        for (Path p : getOuterPath()) {
+        BorderGeometry g = getGeometry(src, params.getBorderSize());
+
+        Bitmap finalBitmap = Bitmap.createBitmap(width, height, src.getConfig());
+        Matrix matrix = makeMatrix(src.getWidth(), src.getHeight(), width, height, borderSize);
+        Matrix pathMatrix = makePathMatrix(g, src, width, height, borderSize, matrix);
+
+        Canvas canvasBorder = new Canvas(finalBitmap);
+
+        for (Path p : g.outerPaths()) {
             Path temp = new Path(p);
-            temp.transform(matrix);
+            temp.transform(pathMatrix);
             canvasBorder.drawPath(temp, paint);
         }
 
-        for (Path p : getInnerPath()) {
+        for (Path p : g.innerPaths()) {
             Path temp = new Path(p);
-            temp.transform(matrix);
+            temp.transform(pathMatrix);
             canvasBorder.drawPath(temp, paint);
         }
 
@@ -171,4 +518,84 @@ public class Border {
 
         return finalBitmap;
     }
+
+    public BorderOutline processOutline(Bitmap src) {
+        return processOutline(src, new BorderParams(getBorderSize(), getColor()));
+    }
+
+    /**
+     * Build the border as geometry instead of pixels: one fill path with the
+     * stroke already expanded, in source coordinates, plus the matrix that
+     * places the source inside it. Draw it at any scale without a bitmap.
+     */
+    public BorderOutline processOutline(Bitmap src, BorderParams params) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+
+        float borderSize = getActualBorderSize(params.getBorderSize(), width, height);
+        Paint paint = makeBorderPaint(borderSize, params.getColor());
+
+        BorderGeometry g = getGeometry(src, params.getBorderSize());
+
+        Matrix matrix = makeMatrix(width, height, width, height, borderSize);
+        Matrix pathMatrix = makePathMatrix(g, src, width, height, borderSize, matrix);
+
+        // Path.op needs KitKat; before that every stroke keeps its own fill
+        // path, since strokes running in opposite directions cancel out when
+        // added to one WINDING path.
+        boolean merge = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+        List<Path> fills = new ArrayList<>();
+        Path outline = new Path();
+
+        Path temp = new Path();
+        for (Path[] paths : new Path[][] { g.outerPaths(), g.innerPaths() }) {
+            for (Path p : paths) {
+                p.transform(pathMatrix, temp);
+
+                Path fill = new Path();
+                paint.getFillPath(temp, fill);
+
+                if (merge)
+                    outline.op(fill, Path.Op.UNION);
+                else
+                    fills.add(fill);
+            }
+        }
+
+        if (merge)
+            fills.add(outline);
+
+        return new BorderOutline(fills.toArray(new Path[fills.size()]), matrix, width, height, params.getColor());
+    }
+
+    static Paint makeBorderPaint(float borderSize, int color) {
+        Paint paint = new Paint();
+        paint.setStrokeWidth(borderSize);
+        paint.setColor(color);
+        paint.setAntiAlias(true);
+        paint.setDither(true);
+        paint.setFilterBitmap(true);
+        paint.setStyle(Style.STROKE);
+        paint.setStrokeJoin(Paint.Join.ROUND);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+        return paint;
+    }
+
+    // Scale srcWidth x srcHeight to the target, then shrink it by the border
+    static Matrix makeMatrix(int srcWidth, int srcHeight, int width, int height, float borderSize) {
+        Matrix matrix = new Matrix();
+        matrix.setScale(width / (srcWidth * 1f), height / (srcHeight * 1f));
+        matrix.postScale((width - borderSize) / (width * 1f),
+            (height - borderSize) / (height * 1f), width / 2f, height / 2f);
+        return matrix;
+    }
+
+    private static Matrix makePathMatrix(BorderGeometry g, Bitmap src, int width, int height,
+                                         float borderSize, Matrix matrix) {
+        if (g.getWidth() > 0 && (g.getWidth() != src.getWidth() || g.getHeight() != src.getHeight()))
+            return makeMatrix(g.getWidth(), g.getHeight(), width, height, borderSize);
+
+        return matrix;
+    }
 }
@@ -0,0 +1,64 @@
+package com.qwerjk.contour;
+
+import android.graphics.Path;
+
+/*
+ * The traced outline of one source, as Border renders it. Immutable once
+ * built: the paths are never changed after construction and only copies
+ * are handed out, so any number of threads may render from one instance.
+ * The contours stay with Border, see Border.getOuterContours().
+ */
+public final class BorderGeometry {
+    private final int width; // size of the space the paths are in, 0 if that is the source's
+    private final int height;
+    private final float traceScale;
+
+    private final Path[] outerPaths;
+    private final Path[] innerPaths;
+
+    BorderGeometry(int width, int height, float traceScale, Path[] outerPaths, Path[] innerPaths) {
+        this.width = width;
+        this.height = height;
+        this.traceScale = traceScale;
+        this.outerPaths = outerPaths;
+        this.innerPaths = innerPaths;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float getTraceScale() {
+        return traceScale;
+    }
+
+    // Copies of the paths, in source coordinates
+    public Path[] getOuterPaths() {
+        return copy(outerPaths);
+    }
+
+    public Path[] getInnerPaths() {
+        return copy(innerPaths);
+    }
+
+    private static Path[] copy(Path[] paths) {
+        Path[] pa = new Path[paths.length];
+        for (int i = 0; i < paths.length; i++)
+            pa[i] = new Path(paths[i]);
+
+        return pa;
+    }
+
+    // The shared paths themselves, read only
+    Path[] outerPaths() {
+        return outerPaths;
+    }
+
+    Path[] innerPaths() {
+        return innerPaths;
+    }
+}
@@ -0,0 +1,93 @@
+package com.qwerjk.contour;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Picture;
+import android.graphics.RectF;
+
+/*
+ * A border as geometry, made by Border.processOutline(). Everything is in
+ * the coordinates of the source bitmap, so the same outline can be drawn at
+ * any size without an intermediate bitmap.
+ */
+public class BorderOutline {
+    private final Path[] paths;
+    private final Matrix sourceMatrix;
+    private final int width;
+    private final int height;
+    private final int color;
+
+    private final Paint paint;
+
+    BorderOutline(Path[] paths, Matrix sourceMatrix, int width, int height, int color) {
+        this.paths = paths;
+        this.sourceMatrix = sourceMatrix;
+        this.width = width;
+        this.height = height;
+        this.color = color;
+
+        paint = new Paint();
+        paint.setColor(color);
+        paint.setAntiAlias(true);
+        paint.setDither(true);
+        paint.setFilterBitmap(true);
+    }
+
+    /**
+     * The border as fill paths: a single merged one from KitKat on, one per
+     * contour before. Shared, copy them before changing them.
+     */
+    public Path[] getPaths() {
+        return paths.clone();
+    }
+
+    // Where the source bitmap goes inside the border
+    public Matrix getSourceMatrix() {
+        return new Matrix(sourceMatrix);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getColor() {
+        return color;
+    }
+
+    // Draw at source size, with the canvas' own transform
+    public void draw(Canvas canvas, Bitmap src) {
+        for (Path p : paths)
+            canvas.drawPath(p, paint);
+
+        if (src != null)
+            canvas.drawBitmap(src, sourceMatrix, paint);
+    }
+
+    // Draw scaled to fill dst
+    public void draw(Canvas canvas, Bitmap src, RectF dst) {
+        int saveCount = canvas.save();
+        canvas.translate(dst.left, dst.top);
+        canvas.scale(dst.width() / width, dst.height() / height);
+        draw(canvas, src);
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * Record the border and source into a Picture, for callers that want a
+     * single drawable object. The bitmap is referenced, not copied.
+     */
+    public Picture toPicture(Bitmap src) {
+        Picture picture = new Picture();
+        Canvas canvas = picture.beginRecording(width, height);
+        draw(canvas, src);
+        picture.endRecording();
+        return picture;
+    }
+}
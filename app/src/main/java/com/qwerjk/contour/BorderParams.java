@@ -0,0 +1,25 @@
+package com.qwerjk.contour;
+
+/*
+ * Per-call render settings for Border. Immutable, so one instance can be
+ * handed to any number of render threads. With a trace tolerance a border
+ * thinner than any rendered before makes the Border trace again, see
+ * Border.setTraceTolerance().
+ */
+public final class BorderParams {
+    private final float borderSize; // From 0-50
+    private final int color;
+
+    public BorderParams(float borderSize, int color) {
+        this.borderSize = borderSize;
+        this.color = color;
+    }
+
+    public float getBorderSize() {
+        return borderSize;
+    }
+
+    public int getColor() {
+        return color;
+    }
+}
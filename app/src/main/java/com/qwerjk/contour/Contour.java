@@ -22,11 +22,16 @@ package com.qwerjk.contour;
 import android.graphics.Path;
 import android.graphics.Path.Direction;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.RectF;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public class Contour {
     private static final int INITIAL_SIZE = 50;
@@ -34,6 +39,15 @@ public class Contour {
     private int label;
     public List<Point> points;
 
+    // statistics, brought up to date with the points on demand
+    private int statCount;
+    private int minX, minY, maxX, maxY;
+    private long twiceArea; // shoelace sum, relative to the first point
+    private double openLength; // perimeter without the closing edge
+
+    private Contour parent;
+    private List<Contour> children;
+
     public Contour(int label, int size) {
         this.label = label;
         points = new ArrayList<>(size);
@@ -47,6 +61,8 @@ public class Contour {
     public Contour(Contour contour) {
         label = contour.label;
         points = contour.points;
+        parent = contour.parent;
+        children = contour.children;
     }
 
     public Contour() {
@@ -95,7 +111,7 @@ public class Contour {
         }
     }
 
-    public Path createOval(float x, float y, float w, float h) {
+    public static Path createOval(float x, float y, float w, float h) {
         Path path = new Path();
         path.addOval(new RectF(x, y, x + w, y + h), Direction.CW);
         return path;
@@ -117,6 +133,12 @@ public class Contour {
     private void moveBy(int dx, int dy) {
         for (Point pt : points)
             translate(pt, dx, dy);
+
+        // area and perimeter do not change
+        minX += dx;
+        maxX += dx;
+        minY += dy;
+        maxY += dy;
     }
 
     public Point translate(Point srcPoint, int dx, int dy) {
@@ -125,6 +147,23 @@ public class Contour {
         return srcPoint;
     }
 
+    // Copies with their own points and no parent or children
+    static List<Contour> detachedCopies(List<Contour> contours) {
+        if (contours == null)
+            return null;
+
+        List<Contour> copies = new ArrayList<>(contours.size());
+        for (Contour c : contours) {
+            Contour copy = new Contour(c.label, c.points.size());
+            for (Point pt : c.points)
+                copy.points.add(new Point(pt.x, pt.y));
+
+            copies.add(copy);
+        }
+
+        return copies;
+    }
+
     static void moveContoursBy(List<Contour> contours, int dx, int dy) {
         for (Contour c : contours) {
             c.moveBy(dx, dy);
@@ -133,10 +172,177 @@ public class Contour {
 
     // --------------------- contour statistics ------------
 
+    public int getLabel() {
+        return label;
+    }
+
     public int getLength() {
         return points.size();
     }
 
+    private void updateStats() {
+        int n = points.size();
+        if (statCount == n)
+            return;
+
+        Point first = points.get(0);
+        if (statCount == 0) {
+            minX = maxX = first.x;
+            minY = maxY = first.y;
+            statCount = 1;
+        }
+
+        Point prev = points.get(statCount - 1);
+        for (int k = statCount; k < n; k++) {
+            Point pt = points.get(k);
+
+            minX = Math.min(minX, pt.x);
+            maxX = Math.max(maxX, pt.x);
+            minY = Math.min(minY, pt.y);
+            maxY = Math.max(maxY, pt.y);
+
+            twiceArea += (long) (prev.x - first.x) * (pt.y - first.y)
+                - (long) (pt.x - first.x) * (prev.y - first.y);
+            openLength += Math.hypot(pt.x - prev.x, pt.y - prev.y);
+
+            prev = pt;
+        }
+
+        statCount = n;
+    }
+
+    // Bounding box of the contour points, right and bottom exclusive
+    public Rect getBounds() {
+        updateStats();
+        return new Rect(minX, minY, maxX + 1, maxY + 1);
+    }
+
+    // Area of the polygon through the pixel centres, 0 for lines and specks
+    public float getArea() {
+        updateStats();
+        return Math.abs(twiceArea) / 2f;
+    }
+
+    // Pixels on and inside an outer contour, by Pick's theorem; lines and
+    // specks count their pixels, unlike getArea()
+    public float getPixelArea() {
+        updateStats();
+
+        int n = points.size();
+        return Math.abs(twiceArea) / 2f + (n > 1 ? n / 2f : 0) + 1;
+    }
+
+    // Background pixels enclosed by an inner contour, by Pick's theorem
+    public float getHoleArea() {
+        updateStats();
+
+        int n = points.size();
+        return Math.max(0, Math.abs(twiceArea) / 2f - n / 2f + 1);
+    }
+
+    // Length of the closed polygon through the pixel centres
+    public float getPerimeter() {
+        updateStats();
+
+        Point first = points.get(0);
+        Point last = points.get(points.size() - 1);
+        return (float) (openLength + Math.hypot(first.x - last.x, first.y - last.y));
+    }
+
+    // --------------------- hierarchy ------------
+
+    /**
+     * For an inner contour, the outer contour of its region. For an outer
+     * contour, the inner contour of the hole it lies in, or null at the top.
+     * Set when the tracer's getRootContours() builds the tree.
+     */
+    public Contour getParent() {
+        return parent;
+    }
+
+    public List<Contour> getChildren() {
+        return children != null ? children : Collections.<Contour>emptyList();
+    }
+
+    private void addChild(Contour child) {
+        if (children == null)
+            children = new ArrayList<>();
+
+        children.add(child);
+        child.parent = this;
+    }
+
+    // Even-odd test of a pixel centre against the polygon of this contour
+    private boolean encloses(int x, int y) {
+        boolean inside = false;
+
+        int n = points.size();
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            Point pi = points.get(i);
+            Point pj = points.get(j);
+            if ((pi.y > y) != (pj.y > y)
+                && x < pi.x + (double) (y - pi.y) * (pj.x - pi.x) / (pj.y - pi.y))
+                inside = !inside;
+        }
+
+        return inside;
+    }
+
+    /**
+     * Link outer and inner contours of one trace into a tree and return its
+     * top level outer contours. Inner contours hang off the outer contour
+     * with their label, outer contours off the smallest hole around them.
+     */
+    static List<Contour> buildHierarchy(List<Contour> outerContours, List<Contour> innerContours) {
+        Map<Integer, Contour> outerByLabel = new HashMap<>();
+        for (Contour c : outerContours) {
+            c.parent = null;
+            c.children = null;
+            outerByLabel.put(c.label, c);
+        }
+
+        List<Contour> holes = new ArrayList<>(innerContours);
+        for (Contour c : holes) {
+            c.parent = null;
+            c.children = null;
+        }
+
+        // smallest first, so the first hole found around a point is the innermost
+        Collections.sort(holes, new Comparator<Contour>() {
+            @Override
+            public int compare(Contour a, Contour b) {
+                return Float.compare(a.getArea(), b.getArea());
+            }
+        });
+
+        for (Contour c : innerContours) {
+            Contour owner = outerByLabel.get(c.label);
+            if (owner != null)
+                owner.addChild(c);
+        }
+
+        List<Contour> roots = new ArrayList<>();
+        for (Contour c : outerContours) {
+            Point start = c.points.get(0);
+
+            Contour hole = null;
+            for (Contour h : holes) {
+                if (h.label != c.label && h.getBounds().contains(start.x, start.y)
+                    && h.encloses(start.x, start.y)) {
+                    hole = h;
+                    break;
+                }
+            }
+
+            if (hole != null)
+                hole.addChild(c);
+            else
+                roots.add(c);
+        }
+
+        return roots;
+    }
+
     public String toString() {
         return "Contour " + label + ": " + getLength() + " points";
     }
@@ -0,0 +1,388 @@
+package com.qwerjk.contour;
+
+import android.graphics.Matrix;
+import android.graphics.Path;
+import android.graphics.Point;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Pre-traced outer and inner contours, stored so they can be shipped with an
+ * asset and loaded without running ContourTracer.
+ *
+ * Layout (big endian):
+ *
+ *   header  magic "CNTR", u16 version, u16 flags, i32 source width,
+ *           i32 source height, f32 trace scale, i32 outer count,
+ *           i32 inner count
+ *   index   one entry per contour, outer ones first: i32 label,
+ *           i32 point count, i32 start x, i32 start y, i32 data offset,
+ *           i32 data length
+ *   data    one byte per following point: the chain code 0..7 of the step
+ *           from the previous point (same directions as the tracer), or
+ *           ESCAPE followed by the zigzag varint encoded dx and dy
+ *
+ * Point coordinates are those of the traced mask; multiply by
+ * 1 / trace scale to get back to the source bitmap.
+ */
+public final class ContourFile implements ContourFinder {
+    public static final int MAGIC = 0x434E5452; // "CNTR"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 28;
+    private static final int INDEX_ENTRY_SIZE = 24;
+    private static final int ESCAPE = 8;
+
+    private static final int[][] DELTA = {
+        { 1, 0 },  { 1, 1 },   { 0, 1 },  { -1, 1 },
+        { -1, 0 }, { -1, -1 }, { 0, -1 }, { 1, -1 }
+    };
+
+    private final ByteBuffer buffer;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final float traceScale;
+    private final int outerCount;
+    private final int innerCount;
+
+    private final Path[] outerPaths;
+    private final Path[] innerPaths;
+
+    private ContourFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a contour file");
+
+        int version = buffer.getShort(4) & 0xFFFF;
+        if (version > VERSION)
+            throw new IOException("Unsupported contour file version " + version);
+
+        sourceWidth = buffer.getInt(8);
+        sourceHeight = buffer.getInt(12);
+        traceScale = buffer.getFloat(16);
+        outerCount = buffer.getInt(20);
+        innerCount = buffer.getInt(24);
+
+        if (outerCount < 0 || innerCount < 0
+            || HEADER_SIZE + (long) (outerCount + innerCount) * INDEX_ENTRY_SIZE > buffer.limit())
+            throw new IOException("Corrupt contour file index");
+
+        verify();
+
+        outerPaths = new Path[outerCount];
+        innerPaths = new Path[innerCount];
+    }
+
+    // Check every index entry and walk its steps once, so that a corrupt file
+    // fails here with an IOException rather than later while decoding
+    private void verify() throws IOException {
+        int dataStart = HEADER_SIZE + (outerCount + innerCount) * INDEX_ENTRY_SIZE;
+
+        for (int i = 0; i < outerCount + innerCount; i++) {
+            int entry = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            int count = buffer.getInt(entry + 4);
+            int offset = buffer.getInt(entry + 16);
+            int length = buffer.getInt(entry + 20);
+
+            if (count < 1 || offset < dataStart || length < 0 || (long) offset + length > buffer.limit())
+                throw new IOException("Corrupt contour file entry " + i);
+
+            int pos = offset;
+            int end = offset + length;
+            for (int k = 1; k < count; k++) {
+                if (pos >= end)
+                    throw new IOException("Truncated contour " + i);
+
+                int code = buffer.get(pos++);
+                if (code < 0 || code > ESCAPE)
+                    throw new IOException("Bad chain code " + code + " in contour " + i);
+
+                if (code == ESCAPE) {
+                    for (int c = 0; c < 2; c++) {
+                        int bytes = 0;
+                        int b;
+                        do {
+                            if (pos >= end || ++bytes > 5)
+                                throw new IOException("Bad offset in contour " + i);
+
+                            b = buffer.get(pos++);
+                        } while ((b & 0x80) != 0);
+                    }
+                }
+            }
+
+            if (pos != end)
+                throw new IOException("Contour " + i + " length does not match its data");
+        }
+    }
+
+    /**
+     * Map <code>file</code> read-only. The index and chain codes are checked
+     * here, but no contour or path is built until one is asked for.
+     */
+    public static ContourFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ContourFile(mapped);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public static ContourFile wrap(ByteBuffer buffer) throws IOException {
+        return new ContourFile(buffer.duplicate());
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    public float getTraceScale() {
+        return traceScale;
+    }
+
+    public int getOuterCount() {
+        return outerCount;
+    }
+
+    public int getInnerCount() {
+        return innerCount;
+    }
+
+    public Contour getOuterContour(int i) {
+        return readContour(indexOf(i, outerCount, 0));
+    }
+
+    public Contour getInnerContour(int i) {
+        return readContour(indexOf(i, innerCount, outerCount));
+    }
+
+    public List<Contour> getOuterContours() {
+        List<Contour> contours = new ArrayList<>(outerCount);
+        for (int i = 0; i < outerCount; i++)
+            contours.add(getOuterContour(i));
+
+        return contours;
+    }
+
+    public List<Contour> getInnerContours() {
+        List<Contour> contours = new ArrayList<>(innerCount);
+        for (int i = 0; i < innerCount; i++)
+            contours.add(getInnerContour(i));
+
+        return contours;
+    }
+
+    // Paths are built on first use and kept, in source coordinates
+    public synchronized Path getOuterPath(int i) {
+        if (outerPaths[i] == null)
+            outerPaths[i] = readPath(indexOf(i, outerCount, 0));
+
+        return outerPaths[i];
+    }
+
+    public synchronized Path getInnerPath(int i) {
+        if (innerPaths[i] == null)
+            innerPaths[i] = readPath(indexOf(i, innerCount, outerCount));
+
+        return innerPaths[i];
+    }
+
+    public Path[] getOuterPaths() {
+        Path[] pa = new Path[outerCount];
+        for (int i = 0; i < outerCount; i++)
+            pa[i] = getOuterPath(i);
+
+        return pa;
+    }
+
+    public Path[] getInnerPaths() {
+        Path[] pa = new Path[innerCount];
+        for (int i = 0; i < innerCount; i++)
+            pa[i] = getInnerPath(i);
+
+        return pa;
+    }
+
+    private int indexOf(int i, int count, int base) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("Contour " + i + " of " + count);
+
+        return HEADER_SIZE + (base + i) * INDEX_ENTRY_SIZE;
+    }
+
+    private Contour readContour(int entry) {
+        int label = buffer.getInt(entry);
+        int count = buffer.getInt(entry + 4);
+
+        Contour contour = new Contour(label, Math.max(count, 1));
+        int[] xy = { buffer.getInt(entry + 8), buffer.getInt(entry + 12) };
+        contour.addPoint(new Point(xy[0], xy[1]));
+
+        int pos = buffer.getInt(entry + 16);
+        for (int k = 1; k < count; k++) {
+            pos = step(pos, xy);
+            contour.addPoint(new Point(xy[0], xy[1]));
+        }
+
+        return contour;
+    }
+
+    // Decode straight into a Path, no intermediate point list
+    private Path readPath(int entry) {
+        int count = buffer.getInt(entry + 4);
+        int[] xy = { buffer.getInt(entry + 8), buffer.getInt(entry + 12) };
+
+        Path path;
+        if (count > 1) {
+            path = new Path();
+            path.moveTo(xy[0], xy[1]);
+
+            int pos = buffer.getInt(entry + 16);
+            for (int k = 1; k < count; k++) {
+                pos = step(pos, xy);
+                path.lineTo(xy[0], xy[1]);
+            }
+        } else { // same small circle Contour uses for isolated pixels
+            path = Contour.createOval(xy[0] - 0.1f, xy[1] - 0.1f, 0.2f, 0.2f);
+        }
+
+        if (traceScale != 1f) {
+            Matrix toSource = new Matrix();
+            toSource.setScale(1f / traceScale, 1f / traceScale);
+            path.transform(toSource);
+        }
+
+        return path;
+    }
+
+    // Apply the step stored at pos to xy, return the position of the next one
+    private int step(int pos, int[] xy) {
+        int code = buffer.get(pos++);
+        if (code != ESCAPE) {
+            xy[0] += DELTA[code][0];
+            xy[1] += DELTA[code][1];
+            return pos;
+        }
+
+        for (int c = 0; c < 2; c++) {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = buffer.get(pos++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            xy[c] += (value >>> 1) ^ -(value & 1);
+        }
+
+        return pos;
+    }
+
+    // --------------------- writing ------------
+
+    public static void write(File file, int sourceWidth, int sourceHeight, float traceScale,
+                             List<Contour> outerContours, List<Contour> innerContours) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            write(out, sourceWidth, sourceHeight, traceScale, outerContours, innerContours);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void write(OutputStream stream, int sourceWidth, int sourceHeight, float traceScale,
+                             List<Contour> outerContours, List<Contour> innerContours) throws IOException {
+        List<Contour> all = new ArrayList<>(outerContours.size() + innerContours.size());
+        all.addAll(outerContours);
+        all.addAll(innerContours);
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[all.size()];
+        int[] lengths = new int[all.size()];
+
+        int base = HEADER_SIZE + all.size() * INDEX_ENTRY_SIZE;
+        for (int i = 0; i < all.size(); i++) {
+            offsets[i] = base + data.size();
+            writeSteps(data, all.get(i).points);
+            lengths[i] = base + data.size() - offsets[i];
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(0);
+        out.writeInt(sourceWidth);
+        out.writeInt(sourceHeight);
+        out.writeFloat(traceScale);
+        out.writeInt(outerContours.size());
+        out.writeInt(innerContours.size());
+
+        for (int i = 0; i < all.size(); i++) {
+            Contour c = all.get(i);
+            Point start = c.points.get(0);
+            out.writeInt(c.getLabel());
+            out.writeInt(c.getLength());
+            out.writeInt(start.x);
+            out.writeInt(start.y);
+            out.writeInt(offsets[i]);
+            out.writeInt(lengths[i]);
+        }
+
+        data.writeTo(out);
+        out.flush();
+    }
+
+    private static void writeSteps(ByteArrayOutputStream out, List<Point> points) {
+        for (int k = 1; k < points.size(); k++) {
+            Point p = points.get(k - 1);
+            Point q = points.get(k);
+            int dx = q.x - p.x;
+            int dy = q.y - p.y;
+
+            int code = ESCAPE;
+            for (int d = 0; d < DELTA.length; d++) {
+                if (DELTA[d][0] == dx && DELTA[d][1] == dy) {
+                    code = d;
+                    break;
+                }
+            }
+
+            out.write(code);
+            if (code == ESCAPE) {
+                writeVarint(out, (dx << 1) ^ (dx >> 31));
+                writeVarint(out, (dy << 1) ^ (dy >> 31));
+            }
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+}
@@ -0,0 +1,13 @@
+package com.qwerjk.contour;
+
+import java.util.List;
+
+/*
+ * Anything that can hand out the outer and inner contours of a binary mask,
+ * in the coordinates of that mask.
+ */
+public interface ContourFinder {
+    List<Contour> getOuterContours();
+
+    List<Contour> getInnerContours();
+}
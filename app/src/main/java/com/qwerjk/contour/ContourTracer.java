@@ -1,18 +1,24 @@
 package com.qwerjk.contour;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.Region;
 
 /*
  * Modified 2010-08-01
  */
 
-public class ContourTracer {
+public class ContourTracer implements ContourFinder {
     private static final byte FOREGROUND = 1;
     private static final byte BACKGROUND = 0;
 
@@ -24,8 +30,18 @@ public class ContourTracer {
     private List<Contour> randomOuterContours = null;
     private List<Contour> randomOuterContoursInside = null;
 
+    private List<Contour> rootContours = null;
+
     private int regionId = 0;
 
+    // contours below either limit are dropped as they are traced
+    private final float minArea;
+    private final int minLength;
+
+    // bounds of every region, dropped ones included, and the dropped labels
+    private final Map<Integer, Rect> regionBounds = new HashMap<>();
+    private final Set<Integer> droppedLabels = new HashSet<>();
+
     private final Bitmap ip;
     private final int width;
     private final int height;
@@ -39,7 +55,19 @@ public class ContourTracer {
 
     // constructor method
     public ContourTracer(Bitmap ip) {
+        this(ip, 0, 0);
+    }
+
+    /**
+     * Trace <code>ip</code>, skipping regions and holes that cover fewer than
+     * <code>minArea</code> pixels or whose contour is shorter than
+     * <code>minLength</code> pixels. Holes of a skipped region are skipped
+     * with it.
+     */
+    public ContourTracer(Bitmap ip, float minArea, int minLength) {
         this.ip = ip;
+        this.minArea = minArea;
+        this.minLength = minLength;
         this.width = ip.getWidth();
         this.height = ip.getHeight();
 
@@ -55,6 +83,15 @@ public class ContourTracer {
         return innerContours;
     }
 
+    // Top level outer contours, see Contour.getParent() and getChildren().
+    // Built on first call after a trace, so retrace() stays local.
+    public List<Contour> getRootContours() {
+        if (rootContours == null)
+            rootContours = Contour.buildHierarchy(outerContours, innerContours);
+
+        return rootContours;
+    }
+
     public List<Contour> getRandomInnerContours() {
         return randomInnerContours;
     }
@@ -79,6 +116,77 @@ public class ContourTracer {
         return BACKGROUND;
     }
 
+    /**
+     * Re-read the pixels inside <code>dirty</code> from the bitmap and re-trace
+     * only the regions that touch it. Contours of every other region are kept,
+     * so the cost follows the size of the edit and of the regions it touches,
+     * not the size of the image. New contours are appended to the lists.
+     */
+    public void retrace(Rect dirty) {
+        Rect clip = new Rect(dirty);
+        if (!clip.intersect(0, 0, width, height))
+            return;
+
+        for (int v = clip.top; v < clip.bottom; v++) {
+            for (int u = clip.left; u < clip.right; u++) {
+                int alpha = Color.alpha(ip.getPixel(u, v));
+                pixelArray[v + 1][u + 1] = alpha > 125 ? FOREGROUND : BACKGROUND;
+            }
+        }
+
+        // Padded coordinates, grown by one pixel so that regions merely
+        // adjacent to the edit, and the background marks around them, are
+        // included. Grow until it holds every region it touches.
+        Rect area = new Rect(clip.left, clip.top, clip.right + 2, clip.bottom + 2);
+        Set<Integer> affected = new HashSet<>();
+
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+
+            for (int v = area.top; v < area.bottom; v++) {
+                for (int u = area.left; u < area.right; u++) {
+                    int label = labelArray[v][u];
+                    if (label <= 0 || !affected.add(label))
+                        continue;
+
+                    Rect bounds = regionBounds.get(label);
+                    if (bounds == null)
+                        continue;
+
+                    Rect b = new Rect(bounds.left, bounds.top, bounds.right + 2, bounds.bottom + 2);
+                    if (!area.contains(b)) {
+                        area.union(b);
+                        grown = true;
+                    }
+                }
+            }
+        }
+
+        area.intersect(0, 0, width + 2, height + 2);
+
+        for (int v = area.top; v < area.bottom; v++) {
+            for (int u = area.left; u < area.right; u++)
+                labelArray[v][u] = 0;
+        }
+
+        removeContours(outerContours, affected);
+        removeContours(innerContours, affected);
+        regionBounds.keySet().removeAll(affected);
+        droppedLabels.removeAll(affected);
+
+        List<Contour> outer = new ArrayList<>();
+        List<Contour> inner = new ArrayList<>();
+        scan(area.left, area.top, area.right, area.bottom, outer, inner);
+
+        Contour.moveContoursBy(outer, -1, -1);
+        Contour.moveContoursBy(inner, -1, -1);
+        outerContours.addAll(outer);
+        innerContours.addAll(inner);
+
+        rootContours = null; // built on demand
+    }
+
     // non-public methods -----------------------------------------------
 
     // Create auxil. arrays, which are "padded", i.e.,
@@ -184,6 +292,14 @@ public class ContourTracer {
         return dir;
     }
 
+    private static void removeContours(List<Contour> contours, Set<Integer> labels) {
+        Iterator<Contour> itr = contours.iterator();
+        while (itr.hasNext()) {
+            if (labels.contains(itr.next().getLabel()))
+                itr.remove();
+        }
+    }
+
     private void findAllContours() {
         outerContours = new ArrayList<>();
         innerContours = new ArrayList<>();
@@ -192,13 +308,29 @@ public class ContourTracer {
         randomInnerContoursInside = new ArrayList<>();
         randomOuterContoursInside = new ArrayList<>();
 
+        scan(0, 0, width + 2, height + 2, outerContours, innerContours);
+
+        // shift back to original coordinates
+        Contour.moveContoursBy(outerContours, -1, -1);
+        Contour.moveContoursBy(innerContours, -1, -1);
+
+        rootContours = null; // built on demand
+    }
+
+    private boolean accept(Contour c, boolean hole) {
+        float area = hole ? c.getHoleArea() : c.getPixelArea();
+        return area >= minArea && c.getPerimeter() >= minLength;
+    }
+
+    // Label and trace every region first met inside the given padded area
+    private void scan(int left, int top, int right, int bottom, List<Contour> outer, List<Contour> inner) {
         int label; // current label
 
         // scan top to bottom, left to right
-        for (int v = 1; v < pixelArray.length - 1; v++) {
+        for (int v = Math.max(top, 1); v < Math.min(bottom, height + 1); v++) {
             label = 0; // no label
 
-            for (int u = 1; u < pixelArray[v].length - 1; u++) {
+            for (int u = Math.max(left, 1); u < Math.min(right, width + 1); u++) {
                 if (pixelArray[v][u] == FOREGROUND) {
                     if (label != 0) { // keep using same label
                         labelArray[v][u] = label;
@@ -208,7 +340,15 @@ public class ContourTracer {
                             label = ++regionId;
 
                             Contour oc = traceOuterContour(u, v, label);
-                            outerContours.add(oc);
+
+                            Rect bounds = oc.getBounds();
+                            bounds.offset(-1, -1);
+                            regionBounds.put(label, bounds);
+
+                            if (accept(oc, false))
+                                outer.add(oc);
+                            else
+                                droppedLabels.add(label);
 
                             labelArray[v][u] = label;
                         }
@@ -217,16 +357,13 @@ public class ContourTracer {
                     if (label != 0) {
                         if (labelArray[v][u] == 0) { // unlabeled - new inner contour
                             Contour ic = traceInnerContour(u - 1, v, label);
-                            innerContours.add(ic);
+                            if (!droppedLabels.contains(label) && accept(ic, true))
+                                inner.add(ic);
                         }
                         label = 0;
                     }
                 }
             }
         }
-
-        // shift back to original coordinates
-        Contour.moveContoursBy(outerContours, -1, -1);
-        Contour.moveContoursBy(innerContours, -1, -1);
     }
 }
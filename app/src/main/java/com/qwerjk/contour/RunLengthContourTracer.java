@@ -0,0 +1,268 @@
+package com.qwerjk.contour;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.graphics.Point;
+
+/*
+ * Same contours as ContourTracer, found without a label grid: the mask is
+ * kept as runs, foreground runs are grouped into regions (8-connected) and
+ * background gaps into holes (4-connected) with union-find, and each
+ * contour is traced from the first run or gap of its region in scan order.
+ * Memory is proportional to the number of runs.
+ */
+public class RunLengthContourTracer implements ContourFinder {
+    private final RunLengthMask mask;
+
+    private List<Contour> outerContours = null;
+    private List<Contour> innerContours = null;
+    private List<Contour> rootContours = null;
+
+    private int regionId = 0;
+
+    // contours below either limit are dropped as they are traced
+    private final float minArea;
+    private final int minLength;
+
+    // union-find over the foreground runs, then over the background gaps
+    private int[] parent;
+
+    public RunLengthContourTracer(Bitmap ip) {
+        this(RunLengthMask.fromBitmap(ip));
+    }
+
+    public RunLengthContourTracer(RunLengthMask mask) {
+        this(mask, 0, 0);
+    }
+
+    // Same filtering as ContourTracer(Bitmap, float, int)
+    public RunLengthContourTracer(RunLengthMask mask, float minArea, int minLength) {
+        this.mask = mask;
+        this.minArea = minArea;
+        this.minLength = minLength;
+
+        findAllContours();
+    }
+
+    public List<Contour> getOuterContours() {
+        return outerContours;
+    }
+
+    public List<Contour> getInnerContours() {
+        return innerContours;
+    }
+
+    public List<Contour> getRootContours() {
+        if (rootContours == null)
+            rootContours = Contour.buildHierarchy(outerContours, innerContours);
+
+        return rootContours;
+    }
+
+    // non-public methods -----------------------------------------------
+
+    private int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+
+        return i;
+    }
+
+    private void union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a != b) {
+            // keep the smaller index as root, it comes first in scan order
+            if (a < b)
+                parent[b] = a;
+            else
+                parent[a] = b;
+        }
+    }
+
+    // Gaps of row v are numbered after all runs; row v has one more gap than runs
+    private int gapIndex(int v, int i) {
+        return mask.getRunCount() + mask.rowStart(v) + v + i;
+    }
+
+    private int gapStart(int v, int i) {
+        return i == 0 ? -1 : mask.getEnd(mask.rowStart(v) + i - 1);
+    }
+
+    private int gapEnd(int v, int i) {
+        int r = mask.rowStart(v) + i;
+        return r == mask.rowEnd(v) ? mask.getWidth() + 1 : mask.getStart(r);
+    }
+
+    private void labelRuns() {
+        int height = mask.getHeight();
+        int runs = mask.getRunCount();
+        int gaps = runs + height;
+        int outside = runs + gaps;
+
+        parent = new int[outside + 1];
+        for (int i = 0; i < parent.length; i++)
+            parent[i] = i;
+
+        for (int v = 0; v < height; v++) {
+            int gapsInRow = mask.rowEnd(v) - mask.rowStart(v) + 1;
+
+            // the first and last gap of a row reach the image border,
+            // and so does every gap of the first and last row
+            for (int i = 0; i < gapsInRow; i++) {
+                if (i == 0 || i == gapsInRow - 1 || v == 0 || v == height - 1)
+                    union(gapIndex(v, i), outside);
+            }
+
+            if (v == 0)
+                continue;
+
+            // foreground: runs of neighbouring rows touching diagonally connect
+            int a = mask.rowStart(v - 1);
+            int b = mask.rowStart(v);
+            while (a < mask.rowEnd(v - 1) && b < mask.rowEnd(v)) {
+                if (mask.getStart(a) <= mask.getEnd(b) && mask.getStart(b) <= mask.getEnd(a))
+                    union(a, b);
+
+                if (mask.getEnd(a) < mask.getEnd(b))
+                    a++;
+                else
+                    b++;
+            }
+
+            // background: gaps must share a column
+            int gapsAbove = mask.rowEnd(v - 1) - mask.rowStart(v - 1) + 1;
+            int i = 0;
+            int j = 0;
+            while (i < gapsAbove && j < gapsInRow) {
+                int endAbove = gapEnd(v - 1, i);
+                int end = gapEnd(v, j);
+                if (gapStart(v - 1, i) < end && gapStart(v, j) < endAbove)
+                    union(gapIndex(v - 1, i), gapIndex(v, j));
+
+                if (endAbove < end)
+                    i++;
+                else
+                    j++;
+            }
+        }
+    }
+
+    private void findAllContours() {
+        outerContours = new ArrayList<>();
+        innerContours = new ArrayList<>();
+
+        labelRuns();
+
+        int runs = mask.getRunCount();
+        int outside = find(parent.length - 1);
+        int[] labels = new int[runs]; // label of each root run
+        boolean[] traced = new boolean[mask.getHeight() + runs]; // per root gap
+        Set<Integer> droppedLabels = new HashSet<>();
+
+        // scan top to bottom, left to right
+        for (int v = 0; v < mask.getHeight(); v++) {
+            int first = mask.rowStart(v);
+            int count = mask.rowEnd(v) - first;
+
+            for (int i = 0; i <= count; i++) {
+                if (i > 0) {
+                    int hole = find(gapIndex(v, i));
+                    if (hole != outside && !traced[hole - runs]) { // new inner contour
+                        traced[hole - runs] = true;
+
+                        int label = labels[find(first + i - 1)];
+                        Contour ic = new Contour(label);
+                        traceContour(mask.getEnd(first + i - 1) - 1, v, 1, ic);
+                        if (!droppedLabels.contains(label) && accept(ic, true))
+                            innerContours.add(ic);
+                    }
+                }
+
+                if (i < count) {
+                    int root = find(first + i);
+                    if (labels[root] == 0) { // new outer contour
+                        labels[root] = ++regionId;
+
+                        Contour oc = new Contour(labels[root]);
+                        traceContour(mask.getStart(first + i), v, 0, oc);
+                        if (accept(oc, false))
+                            outerContours.add(oc);
+                        else
+                            droppedLabels.add(labels[root]);
+                    }
+                }
+            }
+        }
+
+        parent = null;
+        rootContours = null; // built on demand
+    }
+
+    private boolean accept(Contour c, boolean hole) {
+        float area = hole ? c.getHoleArea() : c.getPixelArea();
+        return area >= minArea && c.getPerimeter() >= minLength;
+    }
+
+    // Trace one contour starting at (xS, yS) in direction dS, as ContourTracer does
+    private Contour traceContour(int xS, int yS, int dS, Contour cont) {
+        int xT, yT; // T = successor of starting point (xS,yS)
+        int xP, yP; // P = previous contour point
+        int xC, yC; // C = current contour point
+
+        Point pt = new Point(xS, yS);
+        int dNext = findNextPoint(pt, dS);
+        cont.addPoint(pt);
+
+        xC = xT = pt.x;
+        yC = yT = pt.y;
+
+        boolean done = (xS == xT && yS == yT); // true if isolated pixel
+
+        while (!done) {
+            pt = new Point(xC, yC);
+
+            int dSearch = (dNext + 6) % 8;
+            dNext = findNextPoint(pt, dSearch);
+
+            xP = xC;
+            yP = yC;
+            xC = pt.x;
+            yC = pt.y;
+
+            // are we back at the starting position?
+            done = (xP == xS && yP == yS && xC == xT && yC == yT);
+            if (!done)
+                cont.addPoint(pt);
+        }
+
+        return cont;
+    }
+
+    private static final int[][] DELTA = {
+        { 1, 0 },  { 1, 1 },   { 0, 1 },  { -1, 1 },
+        { -1, 0 }, { -1, -1 }, { 0, -1 }, { 1, -1 }
+    };
+
+    private int findNextPoint(Point pt, int dir) {
+        for (int i = 0; i < 7; i++) {
+            int x = pt.x + DELTA[dir][0];
+            int y = pt.y + DELTA[dir][1];
+            if (!mask.isForeground(x, y)) {
+                dir = (dir + 1) % 8;
+            } else { // found non-background pixel
+                pt.x = x;
+                pt.y = y;
+                break;
+            }
+        }
+
+        return dir;
+    }
+}
@@ -0,0 +1,143 @@
+package com.qwerjk.contour;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.Arrays;
+
+/*
+ * A binary mask stored as the foreground runs of each row. Memory follows
+ * the number of runs rather than width x height, which pays off for masks
+ * that are mostly empty or mostly solid.
+ *
+ * Rows are appended top to bottom, each one run by run from left to right.
+ */
+public class RunLengthMask {
+    private static final int INITIAL_SIZE = 256;
+    private static final int ALPHA_THRESHOLD = 125;
+
+    private final int width;
+    private final int height;
+
+    // run i covers [starts[i], ends[i]) of its row
+    private int[] starts = new int[INITIAL_SIZE];
+    private int[] ends = new int[INITIAL_SIZE];
+    private int runCount;
+
+    // runs of row y are rowOffsets[y] .. rowOffsets[y + 1] - 1
+    private final int[] rowOffsets;
+    private int rows;
+
+    public RunLengthMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        rowOffsets = new int[height + 1];
+    }
+
+    // Read the mask row by row, never holding more than one row of pixels
+    public static RunLengthMask fromBitmap(Bitmap ip) {
+        int w = ip.getWidth();
+        int h = ip.getHeight();
+
+        RunLengthMask mask = new RunLengthMask(w, h);
+        int[] row = new int[w];
+        for (int v = 0; v < h; v++) {
+            ip.getPixels(row, 0, w, 0, v, w, 1);
+            mask.addRow(row, 0, 0, w);
+            mask.endRow();
+        }
+
+        return mask;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * Append the foreground runs found in <code>count</code> ARGB pixels of
+     * the current row, the first of which is at column <code>x</code>.
+     */
+    public void addRow(int[] pixels, int offset, int x, int count) {
+        int u = 0;
+        while (u < count) {
+            while (u < count && Color.alpha(pixels[offset + u]) <= ALPHA_THRESHOLD)
+                u++;
+
+            int start = u;
+            while (u < count && Color.alpha(pixels[offset + u]) > ALPHA_THRESHOLD)
+                u++;
+
+            if (u > start)
+                addRun(x + start, x + u);
+        }
+    }
+
+    // Runs touching the previous one of the same row are merged into it
+    public void addRun(int start, int end) {
+        if (rows >= height)
+            throw new IllegalStateException("Mask already has " + height + " rows");
+
+        if (runCount > rowOffsets[rows] && ends[runCount - 1] >= start) {
+            ends[runCount - 1] = Math.max(ends[runCount - 1], end);
+            return;
+        }
+
+        if (runCount == starts.length) {
+            starts = Arrays.copyOf(starts, runCount * 2);
+            ends = Arrays.copyOf(ends, runCount * 2);
+        }
+
+        starts[runCount] = start;
+        ends[runCount] = end;
+        runCount++;
+    }
+
+    public void endRow() {
+        rows++;
+        rowOffsets[rows] = runCount;
+    }
+
+    int rowStart(int y) {
+        return rowOffsets[y];
+    }
+
+    int rowEnd(int y) {
+        return rowOffsets[y + 1];
+    }
+
+    int getStart(int run) {
+        return starts[run];
+    }
+
+    int getEnd(int run) {
+        return ends[run];
+    }
+
+    public boolean isForeground(int x, int y) {
+        if (y < 0 || y >= rows || x < 0 || x >= width)
+            return false;
+
+        int lo = rowOffsets[y];
+        int hi = rowOffsets[y + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] <= x)
+                lo = mid + 1;
+            else if (starts[mid] > x)
+                hi = mid - 1;
+            else
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,326 @@
+package com.qwerjk.contour;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.io.IOException;
+
+/*
+ * Border for sources too large to hold in memory. The source is read tile
+ * by tile through a BitmapRegionDecoder, both for tracing and for drawing,
+ * and the result is handed to a TileSink one tile at a time, so peak memory
+ * follows the tile size and the number of contour points, not the image.
+ *
+ * Tracing goes through RunLengthMask: each tile is reduced to its runs and
+ * runs meeting at a vertical seam are merged as the rows are assembled, so
+ * contours cross seams without any overlap between tiles.
+ */
+public class TiledBorder {
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    /**
+     * Receives the output. The tile bitmap is reused for the next call, so
+     * it must be encoded or copied before returning.
+     */
+    public interface TileSink {
+        void writeTile(Bitmap tile, int left, int top) throws IOException;
+    }
+
+    private final Border border;
+    private final int tileSize;
+
+    // Guarded by traceLock, with the decoder and settings it was traced for
+    private final Object traceLock = new Object();
+    private BorderGeometry geometry;
+    private BitmapRegionDecoder tracedDecoder;
+    private float tracedBorderSize;
+    private float tracedTolerance;
+    private float tracedMinArea;
+    private int tracedMinLength;
+
+    public TiledBorder(Border border) {
+        this(border, DEFAULT_TILE_SIZE);
+    }
+
+    // Trace settings (tolerance, filters) come from border
+    public TiledBorder(Border border, int tileSize) {
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+
+        this.border = border;
+        this.tileSize = tileSize;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * The geometry of the decoder's image, traced on first use. The trace
+     * tolerance is rounded down to a power of two and applied while
+     * decoding, with inSampleSize, so the full size mask is never built.
+     * Traced again for another decoder, after the Border's trace settings
+     * changed, or for a thinner border than it was traced for.
+     */
+    public BorderGeometry getGeometry(BitmapRegionDecoder decoder) {
+        return getGeometry(decoder, border.getBorderSize());
+    }
+
+    private BorderGeometry getGeometry(BitmapRegionDecoder decoder, float borderSize) {
+        synchronized (traceLock) {
+            float tolerance = border.getTraceTolerance();
+            if (geometry == null || decoder != tracedDecoder
+                || tolerance != tracedTolerance
+                || border.getMinContourArea() != tracedMinArea
+                || border.getMinContourLength() != tracedMinLength
+                || (tolerance > 1f && borderSize < tracedBorderSize)) {
+                borderSize = Math.min(borderSize, border.getBorderSize());
+                geometry = trace(decoder, borderSize);
+
+                tracedDecoder = decoder;
+                tracedBorderSize = borderSize;
+                tracedTolerance = tolerance;
+                tracedMinArea = border.getMinContourArea();
+                tracedMinLength = border.getMinContourLength();
+            }
+
+            return geometry;
+        }
+    }
+
+    // Drop the traced geometry, e.g. when the decoder's source was rewritten
+    public void invalidate() {
+        synchronized (traceLock) {
+            geometry = null;
+            tracedDecoder = null;
+        }
+    }
+
+    public void process(BitmapRegionDecoder decoder, TileSink sink) throws IOException {
+        process(decoder, decoder.getWidth(), decoder.getHeight(),
+            new BorderParams(border.getBorderSize(), border.getColor()), sink);
+    }
+
+    /**
+     * Render the bordered image at <code>width</code> x <code>height</code>,
+     * row of tiles by row of tiles, left to right. Each output tile decodes
+     * only the part of the source it shows, plus one sampled pixel of halo.
+     * Regions start and end on multiples of the sample size, so every tile
+     * samples the same source blocks and filters across the seams as an
+     * untiled render at that sample size would.
+     */
+    public void process(BitmapRegionDecoder decoder, int width, int height, BorderParams params,
+                        TileSink sink) throws IOException {
+        int srcWidth = decoder.getWidth();
+        int srcHeight = decoder.getHeight();
+
+        float borderSize = Border.getActualBorderSize(params.getBorderSize(), width, height);
+        Paint paint = Border.makeBorderPaint(borderSize, params.getColor());
+
+        BorderGeometry g = getGeometry(decoder, params.getBorderSize());
+
+        Matrix matrix = Border.makeMatrix(srcWidth, srcHeight, width, height, borderSize);
+        Matrix inverse = new Matrix();
+        matrix.invert(inverse);
+
+        // all paths in output coordinates, with the bounds of their stroke
+        Path[] paths = new Path[g.outerPaths().length + g.innerPaths().length];
+        RectF[] bounds = new RectF[paths.length];
+        int n = 0;
+        for (Path[] pa : new Path[][] { g.outerPaths(), g.innerPaths() }) {
+            for (Path p : pa) {
+                Path temp = new Path();
+                p.transform(matrix, temp);
+
+                RectF b = new RectF();
+                temp.computeBounds(b, false);
+                b.inset(-borderSize / 2f - 1f, -borderSize / 2f - 1f);
+
+                paths[n] = temp;
+                bounds[n++] = b;
+            }
+        }
+
+        // decode the source no larger than it is drawn
+        int sampleSize = sampleSizeFor(Math.min(width / (srcWidth * 1f), height / (srcHeight * 1f)));
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Config.ARGB_8888;
+        options.inSampleSize = sampleSize;
+
+        Bitmap tile = null;
+        RectF tileRect = new RectF();
+        RectF srcRect = new RectF();
+        Rect region = new Rect();
+
+        for (int top = 0; top < height; top += tileSize) {
+            for (int left = 0; left < width; left += tileSize) {
+                int tileWidth = Math.min(tileSize, width - left);
+                int tileHeight = Math.min(tileSize, height - top);
+
+                if (tile == null || tile.getWidth() != tileWidth || tile.getHeight() != tileHeight) {
+                    if (tile != null)
+                        tile.recycle();
+
+                    tile = Bitmap.createBitmap(tileWidth, tileHeight, Config.ARGB_8888);
+                }
+
+                tile.eraseColor(Color.TRANSPARENT);
+                Canvas canvas = new Canvas(tile);
+                canvas.translate(-left, -top);
+
+                tileRect.set(left, top, left + tileWidth, top + tileHeight);
+                for (int i = 0; i < paths.length; i++) {
+                    if (RectF.intersects(bounds[i], tileRect))
+                        canvas.drawPath(paths[i], paint);
+                }
+
+                inverse.mapRect(srcRect, tileRect);
+                srcRect.roundOut(region);
+                region.set(alignDown(region.left - sampleSize, sampleSize),
+                    alignDown(region.top - sampleSize, sampleSize),
+                    alignUp(region.right + sampleSize, sampleSize),
+                    alignUp(region.bottom + sampleSize, sampleSize));
+                if (region.intersect(0, 0, srcWidth, srcHeight)) {
+                    Bitmap part = decoder.decodeRegion(region, options);
+                    if (part != null) {
+                        Matrix partMatrix = new Matrix(matrix);
+                        partMatrix.preTranslate(region.left, region.top);
+                        partMatrix.preScale(sampleSize, sampleSize);
+                        canvas.drawBitmap(part, partMatrix, paint);
+                        part.recycle();
+                    }
+                }
+
+                sink.writeTile(tile, left, top);
+            }
+        }
+
+        if (tile != null)
+            tile.recycle();
+    }
+
+    private BorderGeometry trace(BitmapRegionDecoder decoder, float borderSize) {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+
+        float scale = Border.computeTraceScale(
+            Border.getActualBorderSize(borderSize, width, height), border.getTraceTolerance());
+        int sampleSize = sampleSizeFor(scale);
+        RunLengthMask mask = decodeMask(decoder, sampleSize);
+
+        int traceWidth = mask.getWidth();
+        int traceHeight = mask.getHeight();
+
+        // filter limits in mask pixels
+        float sx = traceWidth / (width * 1f);
+        float minArea = border.getMinContourArea() * sx * sx;
+        int minLength = (int) Math.ceil(border.getMinContourLength() * sx);
+
+        RunLengthContourTracer tracer = new RunLengthContourTracer(mask, minArea, minLength);
+
+        Path[] outer = Contour.makePolygons(tracer.getOuterContours());
+        Path[] inner = Contour.makePolygons(tracer.getInnerContours());
+        if (traceWidth != width || traceHeight != height) {
+            Matrix toSource = new Matrix();
+            toSource.setScale(width / (traceWidth * 1f), height / (traceHeight * 1f));
+
+            for (Path p : outer)
+                p.transform(toSource);
+
+            for (Path p : inner)
+                p.transform(toSource);
+        }
+
+        return new BorderGeometry(width, height, sx, outer, inner);
+    }
+
+    // Largest power of two not above 1 / scale, what inSampleSize honours
+    private static int sampleSizeFor(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f)
+            sampleSize *= 2;
+
+        return sampleSize;
+    }
+
+    // Round to a multiple of step, a power of two
+    private static int alignDown(int value, int step) {
+        return value & -step;
+    }
+
+    private static int alignUp(int value, int step) {
+        return (value + step - 1) & -step;
+    }
+
+    // Binarize the image one band of tiles at a time. Each tile becomes a
+    // small mask of its own, whose rows are then appended to the full mask;
+    // addRun() joins runs that touch across a seam.
+    private RunLengthMask decodeMask(BitmapRegionDecoder decoder, int sampleSize) {
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        int maskWidth = (width + sampleSize - 1) / sampleSize;
+        int maskHeight = (height + sampleSize - 1) / sampleSize;
+
+        RunLengthMask mask = new RunLengthMask(maskWidth, maskHeight);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Config.ARGB_8888;
+        options.inSampleSize = sampleSize;
+
+        int columns = (maskWidth + tileSize - 1) / tileSize;
+        RunLengthMask[] band = new RunLengthMask[columns];
+        int[] row = new int[tileSize];
+        Rect region = new Rect();
+
+        for (int top = 0; top < maskHeight; top += tileSize) {
+            int bandHeight = Math.min(tileSize, maskHeight - top);
+
+            for (int c = 0; c < columns; c++) {
+                int left = c * tileSize;
+                int tileWidth = Math.min(tileSize, maskWidth - left);
+
+                region.set(left * sampleSize, top * sampleSize,
+                    Math.min(width, (left + tileWidth) * sampleSize),
+                    Math.min(height, (top + bandHeight) * sampleSize));
+
+                band[c] = new RunLengthMask(tileWidth, bandHeight);
+
+                Bitmap part = decoder.decodeRegion(region, options);
+                int w = part != null ? Math.min(tileWidth, part.getWidth()) : 0;
+                int h = part != null ? Math.min(bandHeight, part.getHeight()) : 0;
+
+                for (int v = 0; v < bandHeight; v++) {
+                    if (v < h) {
+                        part.getPixels(row, 0, w, 0, v, w, 1);
+                        band[c].addRow(row, 0, 0, w);
+                    }
+                    band[c].endRow();
+                }
+
+                if (part != null)
+                    part.recycle();
+            }
+
+            for (int v = 0; v < bandHeight; v++) {
+                for (int c = 0; c < columns; c++) {
+                    int left = c * tileSize;
+                    for (int r = band[c].rowStart(v); r < band[c].rowEnd(v); r++)
+                        mask.addRun(left + band[c].getStart(r), left + band[c].getEnd(r));
+                }
+                mask.endRow();
+            }
+        }
+
+        return mask;
+    }
+}